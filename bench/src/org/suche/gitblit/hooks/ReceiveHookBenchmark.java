@@ -0,0 +1,98 @@
+package org.suche.gitblit.hooks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** End to end pre-receive check of synthetic pushes against an in memory repository.
+ * Every invocation pushes a new commit with fresh blobs, so the scan cache never answers and each push pays the full scan.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReceiveHookBenchmark {
+	private static final PersonIdent AUTHOR = new PersonIdent("Bench", "bench@example.com");
+
+	@State(Scope.Thread) public static class Push {
+		@Param({"1", "10", "100"})   public int    files;
+		@Param({"4096", "262144"})   public int    fileSize;
+		@Param({"SOURCE", "SECRET"}) public Corpus corpus;
+
+		private final long   salt = System.nanoTime();	// forks share the cache file, the content must differ between them
+		private long         pushes;
+		Ruleset              ruleset;
+		InMemoryRepository   repository;
+		ObjectId             tip;
+		List<ReceiveCommand> commands;
+
+		@Setup(Level.Trial) public void rules() throws Exception { ruleset = Ruleset.of(Corpus.rules()); }
+
+		/** A fresh repository per iteration keeps the packs of earlier pushes from piling up in memory. */
+		@Setup(Level.Iteration) public void repository() throws Exception {
+			repository = new InMemoryRepository(new DfsRepositoryDescription("bench"));
+			try(final var ins = repository.newObjectInserter()) {
+				final var tree = new TreeFormatter();
+				tree.append("README.md", FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB, "# bench\n".getBytes()));
+				tip = commit(ins, ins.insert(tree), null);
+			}
+			final var ru = repository.updateRef(Constants.R_HEADS+"master");
+			ru.setNewObjectId(tip);
+			if(ru.update() != RefUpdate.Result.NEW) throw new IllegalStateException("Create master => "+ru.getResult());
+		}
+
+		/** Creates the next push, the ref is not moved so every push is new content on top of the same base. */
+		@Setup(Level.Invocation) public void push() throws Exception {
+			try(final var ins = repository.newObjectInserter()) {
+				final var tree = new TreeFormatter();
+				for(var i = 0; i < files; i++) {	// TreeFormatter wants sorted names, fixed width numbers sort naturally
+					final var content = corpus.generate(salt ^ pushes * 1_000_003 ^ i, fileSize);
+					tree.append(String.format("f%05d.txt", i), FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB, content));
+				}
+				final var commit = commit(ins, ins.insert(tree), tip);
+				commands = List.of(new ReceiveCommand(tip, commit, Constants.R_HEADS+"master"));
+			}
+			pushes++;
+		}
+
+		private static ObjectId commit(final ObjectInserter ins, final ObjectId tree, final ObjectId parent) throws Exception {
+			final var cb = new CommitBuilder();
+			cb.setTreeId(tree);
+			if(parent != null) cb.setParentId(parent);
+			cb.setAuthor(AUTHOR);
+			cb.setCommitter(AUTHOR);
+			cb.setMessage("bench\n");
+			final var id = ins.insert(cb);
+			ins.flush();
+			return id;
+		}
+	}
+
+	@Benchmark public int onPreReceive(final Push push) throws Exception {
+		return GitBlitSecCheckReceiveHook.check(push.repository, push.ruleset, push.commands);
+	}
+}
@@ -0,0 +1,79 @@
+package org.suche.gitblit.hooks;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.suche.gitblit.hooks.Ruleset.Rule;
+
+/** Compile time, matching throughput and entropy of the {@link Ruleset} on etc/gitleaks.toml. */
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RulesetBenchmark {
+
+	@State(Scope.Benchmark) public static class Rules {
+		@Param({"jdk", "re2"}) public String engine;
+		String  toml;
+		Ruleset ruleset;
+		@Setup public void setup() throws Exception {
+			toml    = Corpus.rules();
+			ruleset = Ruleset.ofConfig(Ruleset.configOf(toml), RegexEngine.of(engine));
+		}
+	}
+
+	@State(Scope.Benchmark) public static class Content {
+		@Param({"SOURCE", "MINIFIED_JS", "LOCKFILE", "NEAR_MISS", "SECRET"}) public Corpus corpus;
+		@Param({"1048576"}) public int size;
+		Latin1Sequence content;
+		@Setup public void setup() { content = new Latin1Sequence(corpus.generate(42, size)); }
+	}
+
+	/** Reported as {@code findMatch:megabytes} in MB/s next to the ops/s of the benchmark. */
+	@AuxCounters(AuxCounters.Type.OPERATIONS) @State(Scope.Thread) public static class Throughput {
+		public double megabytes;
+		@Setup(Level.Iteration) public void reset() { megabytes = 0; }
+	}
+
+	@State(Scope.Thread) public static class Candidates {
+		@Param({"16", "40", "128"}) public int length;
+		final String[] values = new String[1024];
+		int next;
+		@Setup public void setup() {
+			final var r = new Random(42);
+			for(var i = 0; i < values.length; i++) {
+				final var sb = new StringBuilder(length);
+				Corpus.random(r, sb, "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/", length);
+				values[i] = sb.toString();
+			}
+		}
+	}
+
+	/** TOML parse, validation of every rule and compile of the combined alternation of all rules, only the keyword specific alternations are compiled by the first match needing them. */
+	@Benchmark @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Ruleset compile(final Rules rules) { return Ruleset.ofConfig(Ruleset.configOf(rules.toml), RegexEngine.of(rules.engine)); }
+
+	@Benchmark @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+	public Map.Entry<String,Rule> findMatch(final Rules rules, final Content content, final Throughput throughput) {
+		throughput.megabytes += content.size / 1e6;
+		return rules.ruleset.findMatch(content.content);
+	}
+
+	@Benchmark @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public double shannonEntropy(final Candidates candidates) {
+		return Ruleset.shannonEntropy(candidates.values[candidates.next++ & candidates.values.length - 1]);
+	}
+}
@@ -0,0 +1,114 @@
+package org.suche.gitblit.hooks;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+
+/** Case-insensitive multi keyword matcher over ASCII keywords.
+ * The trie is completed into a DFA (goto + failure transitions) so a scan is one table lookup per input char.
+ * Every keyword carries a {@link BitSet} of ids, {@link #match(CharSequence)} returns the union of the ids of all keywords found.
+ */
+public final class AhoCorasick implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int  ALPHABET = 128;
+
+	private final int[]    delta ; // state * ALPHABET + char => next state
+	private final BitSet[] output; // state => ids of all keywords ending here (including failure chain), null if none
+
+	private AhoCorasick(final int[] delta, final BitSet[] output) { this.delta = delta; this.output = output; }
+
+	/** @return true if the keyword can be handled by the automaton (non empty and ASCII only after lower casing) */
+	public static boolean supports(final String keyword) {
+		if(keyword == null || keyword.isEmpty()) return false;
+		final var k = keyword.toLowerCase(Locale.ROOT);
+		for(var i = 0; i < k.length(); i++) if(k.charAt(i) >= ALPHABET) return false;
+		return true;
+	}
+
+	private static char lower(final char c) { return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c; }
+
+	public static AhoCorasick of(final Map<String, BitSet> keywords) {
+		var goTo   = new int[16 * ALPHABET];
+		var ids    = new BitSet[16];
+		var states = 1;
+		Arrays.fill(goTo, -1);
+		for(final var e : keywords.entrySet()) {
+			if(!supports(e.getKey())) throw new IllegalArgumentException("Unsupported keyword ["+e.getKey()+"]");
+			final var k = e.getKey().toLowerCase(Locale.ROOT);
+			var s = 0;
+			for(var i = 0; i < k.length(); i++) {
+				final var idx = s * ALPHABET + k.charAt(i);
+				if(goTo[idx] < 0) {
+					if(states == ids.length) {
+						final var old = goTo.length;
+						goTo = Arrays.copyOf(goTo, old * 2);
+						Arrays.fill(goTo, old, goTo.length, -1);
+						ids  = Arrays.copyOf(ids, ids.length * 2);
+					}
+					goTo[idx] = states++;
+				}
+				s = goTo[idx];
+			}
+			if(ids[s] == null) ids[s] = new BitSet();
+			ids[s].or(e.getValue());
+		}
+		final var delta  = new int[states * ALPHABET];
+		final var output = new BitSet[states];
+		final var fail   = new int[states];
+		final var queue  = new ArrayDeque<Integer>();
+		output[0] = ids[0];
+		for(var c = 0; c < ALPHABET; c++) {
+			final var t = goTo[c];
+			delta[c] = t < 0 ? 0 : t;
+			if(t > 0) { fail[t] = 0; queue.add(t); }
+		}
+		while(!queue.isEmpty()) {
+			final int s = queue.poll();
+			final var f = fail[s];
+			output[s] = union(ids[s], output[f]);
+			for(var c = 0; c < ALPHABET; c++) {
+				final var t = goTo[s * ALPHABET + c];
+				if(t < 0) { delta[s * ALPHABET + c] = delta[f * ALPHABET + c]; continue; }
+				delta[s * ALPHABET + c] = t;
+				fail[t] = delta[f * ALPHABET + c];
+				queue.add(t);
+			}
+		}
+		return new AhoCorasick(delta, output);
+	}
+
+	private static BitSet union(final BitSet a, final BitSet b) {
+		if(a == null) return b;
+		if(b == null) return a;
+		final var r = (BitSet)a.clone();
+		r.or(b);
+		return r;
+	}
+
+	/** Single pass over the text.
+	 * @return union of the ids of all keywords contained in the text (never null) */
+	public BitSet match(final CharSequence text) {
+		final var hits = new BitSet();
+		var state = 0;
+		for(int i = 0, n = text.length(); i < n; i++) {
+			final var c = text.charAt(i);
+			state = c < ALPHABET ? delta[state * ALPHABET + lower(c)] : 0;
+			if(output[state] instanceof final BitSet o) hits.or(o);
+		}
+		return hits;
+	}
+
+	/** @return true if the text contains any keyword, stops at the first one */
+	public boolean contains(final CharSequence text) {
+		var state = 0;
+		for(int i = 0, n = text.length(); i < n; i++) {
+			final var c = text.charAt(i);
+			state = c < ALPHABET ? delta[state * ALPHABET + lower(c)] : 0;
+			if(output[state] != null) return true;
+		}
+		return false;
+	}
+}
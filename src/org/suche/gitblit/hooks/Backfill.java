@@ -0,0 +1,315 @@
+package org.suche.gitblit.hooks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.FS;
+
+/** Offline scan of the whole history of every repository below a directory, usually the Gitblit repositories folder (data/git).
+ * <pre>java -cp GitBlitSecCheck.jar:&lt;gitblit jars&gt; org.suche.gitblit.hooks.Backfill [options] &lt;repositories folder&gt;
+ *  --format jsonl|sarif   output format, default jsonl
+ *  --output file          default backfill.jsonl or backfill.sarif
+ *  --checkpoint file      default output file + .checkpoint
+ *  --cache file           scan verdicts, default output file + .cache
+ *  --rules file           default etc/gitleaks.toml
+ *  --parallel n           default all cores</pre>
+ * Every blob reachable from any ref is scanned once per repository with the rules, limits and scan cache of the receive hook, with the oldest commit and path
+ * the walk meets it at. Blobs are scanned on a {@link ForkJoinPool} while the walk goes on, at most {@code 4 * parallel} of them wait or run at a time
+ * and the content held in memory is bounded by GitBlitSecCheck.maxInFlightBytes.
+ * After each repository the output length is appended to the checkpoint, a restart skips the finished repositories and truncates the output to the
+ * last checkpoint. Verdicts of finished blobs are in the cache file, so a restart inside a large repository rescans little. It is not the cache of the hook,
+ * one line per blob of the whole history would fill that one. The rules are read once, no watcher is started and nothing is downloaded.
+ */
+public final class Backfill {
+	private static final Logger LOG = Logger.getLogger(Backfill.class.getCanonicalName());
+
+	private enum Format { JSONL, SARIF }
+
+	private final Path           root;
+	private final Ruleset        ruleset;
+	private final Format         format;
+	private final Path           output;	// findings as they are found, JSONL records or SARIF results one per line
+	private final Path           checkpoint;
+	private final ForkJoinPool   pool;
+	private final int            maxInFlight;
+	private final Semaphore      inFlight;
+	private final LongAdder      blobs    = new LongAdder();
+	private final LongAdder      findings = new LongAdder();
+	private       BufferedWriter out;
+
+	private Backfill(final Path root, final Ruleset ruleset, final Format format, final Path output, final Path checkpoint, final int parallel) {
+		this.root        = root;
+		this.ruleset     = ruleset;
+		this.format      = format;
+		this.output      = output;
+		this.checkpoint  = checkpoint;
+		this.pool        = new ForkJoinPool(parallel);
+		this.maxInFlight = 4 * parallel;
+		this.inFlight    = new Semaphore(maxInFlight);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		var  format     = Format.JSONL;
+		Path output     = null;
+		Path checkpoint = null;
+		Path cache      = null;
+		var  rules      = RulesetLoader.path;
+		var  parallel   = Runtime.getRuntime().availableProcessors();
+		Path root       = null;
+		for(var i = 0; i < args.length; i++) {
+			switch(args[i]) {
+			case "--format"     -> format     = Format.valueOf(args[++i].toUpperCase());
+			case "--output"     -> output     = Path.of(args[++i]);
+			case "--checkpoint" -> checkpoint = Path.of(args[++i]);
+			case "--cache"      -> cache      = Path.of(args[++i]);
+			case "--rules"      -> rules      = Path.of(args[++i]);
+			case "--parallel"   -> parallel   = Integer.parseInt(args[++i]);
+			default             -> root       = Path.of(args[i]);
+			}
+		}
+		if(null == root || !Files.isDirectory(root)) {
+			System.err.println("Usage: Backfill [--format jsonl|sarif] [--output file] [--checkpoint file] [--cache file] [--rules file] [--parallel n] <repositories folder>");
+			System.exit(2);
+		}
+		if(!Files.exists(rules)) throw new IllegalStateException("Missing "+rules.toAbsolutePath());
+		if(null == output    ) output     = Path.of("backfill."+format.name().toLowerCase());
+		if(null == checkpoint) checkpoint = output.resolveSibling(output.getFileName()+".checkpoint");
+		if(null == cache     ) cache      = output.resolveSibling(output.getFileName()+".cache");
+		System.setProperty("GitBlitSecCheck.cache", cache.toString());	// read when the hook class is initialized by the first scan
+		windowCache();
+		final var ruleset = Ruleset.of(Files.readString(rules));
+		LOG.log(Level.INFO, "Backfill "+root+" with "+ruleset.rules().size()+" rules of "+rules+" fingerprint "+ruleset.fingerprint());
+		final var partial = format == Format.SARIF ? output.resolveSibling(output.getFileName()+".results") : output;
+		new Backfill(root, ruleset, format, partial, checkpoint, Math.max(1, parallel)).run();
+		if(format == Format.SARIF) sarif(partial, output);
+	}
+
+	/** Pack windows for a sequential walk of large packs, GitBlitSecCheck.packedGitLimit bytes (default a quarter of the heap), mapped if GitBlitSecCheck.packedGitMMAP. */
+	private static void windowCache() {
+		final var cfg = new WindowCacheConfig();
+		cfg.setPackedGitLimit     (Long.getLong("GitBlitSecCheck.packedGitLimit", Runtime.getRuntime().maxMemory() / 4));
+		cfg.setPackedGitWindowSize(1 << 20);
+		cfg.setPackedGitMMAP      (Boolean.getBoolean("GitBlitSecCheck.packedGitMMAP"));
+		cfg.setPackedGitOpenFiles (1024);
+		cfg.setDeltaBaseCacheLimit(64 << 20);
+		cfg.install();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		final var done = resume();
+		try(final var o = Files.newBufferedWriter(output, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			out = o;
+			for(final var dir : repositories()) {
+				final var name = root.relativize(dir).toString().replace(File.separatorChar, '/');
+				if(done.contains(name)) continue;
+				final var start  = System.nanoTime();
+				final var before = findings.sum();
+				final var mark   = Files.size(output);
+				try(final var repository = new FileRepositoryBuilder().setGitDir(dir.toFile()).setMustExist(true).build()) {
+					scan(name, repository);
+					o.flush();
+				} catch(final IOException e) {	// not checkpointed, retried by the next run
+					LOG.log(Level.SEVERE, "Backfill "+name+" => "+e.getMessage(), e);
+					o.flush();
+					truncate(output, mark);
+					continue;
+				}
+				Files.writeString(checkpoint, Files.size(output)+" "+name+"\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				LOG.log(Level.INFO, "Backfill "+name+" "+(findings.sum() - before)+" findings in "+TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)+" s, total "+blobs.sum()+" blobs");
+			}
+		} finally { pool.shutdown(); }
+		LOG.log(Level.INFO, "Backfill done, "+blobs.sum()+" blobs "+findings.sum()+" findings, cache hits "+ScanMetrics.cacheHits.sum()+" misses "+ScanMetrics.cacheMisses.sum());
+	}
+
+	/** @return the finished repositories, the output is cut back to the length recorded with the last of them */
+	private Set<String> resume() throws IOException {
+		final var done = new HashSet<String>();
+		var length = 0L;
+		if(Files.exists(checkpoint)) for(final var line : Files.readAllLines(checkpoint, StandardCharsets.UTF_8)) {
+			final var sep = line.indexOf(' ');
+			if(sep <= 0) continue;
+			length = Long.parseLong(line.substring(0, sep));
+			done.add(line.substring(sep + 1));
+		}
+		if(Files.exists(output)) truncate(output, length);	// findings of an interrupted repository
+		if(!done.isEmpty()) LOG.log(Level.INFO, "Resume after "+done.size()+" repositories of "+checkpoint);
+		return done;
+	}
+
+	private static void truncate(final Path file, final long length) throws IOException {
+		if(Files.size(file) > length) try(final var ch = FileChannel.open(file, StandardOpenOption.WRITE)) { ch.truncate(length); }
+	}
+
+	/** @return the git directories below the root in path order, the content of a repository is not searched for further ones */
+	private List<Path> repositories() throws IOException {
+		final var found = new ArrayList<Path>();
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+			@Override public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+				if(!RepositoryCache.FileKey.isGitRepository(dir.toFile(), FS.DETECTED)) return FileVisitResult.CONTINUE;
+				found.add(dir);
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+		});
+		found.sort(null);
+		return found;
+	}
+
+	/** Walks all refs once, each tree and blob is visited a single time however many commits share it, and scans the blobs while walking. */
+	private void scan(final String name, final Repository repository) throws IOException, InterruptedException {
+		try(final var walk = new ObjectWalk(repository)) {
+			walk.setRetainBody(false);
+			walk.sort(RevSort.TOPO   , true);
+			walk.sort(RevSort.REVERSE, true);
+			var starts = 0;
+			for(final var ref : repository.getRefDatabase().getRefs()) if(ref.getObjectId() instanceof final ObjectId id) {
+				try {
+					if(walk.peel(walk.parseAny(id)) instanceof final RevCommit c) { walk.markStart(c); starts++; }
+				} catch(final IOException e) { LOG.log(Level.WARNING, "Backfill "+name+" skip "+ref.getName()+" => "+e.getMessage()); }
+			}
+			if(starts == 0) return;
+			final var roots = new HashMap<ObjectId, RevCommit>();
+			for(RevCommit c; null != (c = walk.next());) roots.putIfAbsent(c.getTree(), c);
+			final var restricted = new HashMap<ObjectId, String>();
+			RevCommit commit = null;
+			for(RevObject o; null != (o = walk.nextObject());) {
+				if(o instanceof RevTree && roots.get(o) instanceof final RevCommit c) commit = c;
+				else if(o instanceof RevBlob) {
+					final var path = walk.getPathString();
+					submit(name, repository, new GitBlitSecCheckReceiveHook.Target(o.copy(), path, commit, null));
+					if(GitBlitSecCheckReceiveHook.restricted(ruleset, path)) restricted.put(o.copy(), path);
+				}
+			}
+			otherPaths(name, repository, roots, restricted);
+		} finally {	// all permits back means every blob of the repository is done
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		}
+	}
+
+	/** Submits the blobs found at a path other than the first one if that path excluded some rules so the first verdict does not hold for them,
+	 * and every other path with own findings (a path only rule or a Tika document) of any blob. A second walk reads every tree once more, a blob inside a subtree repeated at another path is only seen under the first path of that subtree. */
+	private void otherPaths(final String name, final Repository repository, final Map<ObjectId, RevCommit> roots, final Map<ObjectId, String> restricted) throws IOException, InterruptedException {
+		final var seen = new HashSet<String>();
+		try(final var walk = new ObjectWalk(repository)) {
+			walk.setRetainBody(false);
+			walk.sort(RevSort.TOPO   , true);
+			walk.sort(RevSort.REVERSE, true);
+			for(final var c : roots.values()) walk.markStart(walk.parseCommit(c));
+			while(null != walk.next()) { }
+			final var parser = new CanonicalTreeParser();
+			RevCommit commit = null;
+			for(RevObject o; null != (o = walk.nextObject());) {
+				if(!(o instanceof RevTree)) continue;
+				if(roots.get(o) instanceof final RevCommit c) commit = c;
+				final var dir = walk.getPathString();	// null for a root tree
+				parser.reset(walk.getObjectReader(), o);
+				for(; !parser.eof(); parser.next()) {
+					if(parser.getEntryFileMode().getObjectType() != Constants.OBJ_BLOB) continue;
+					final var path  = null == dir || dir.isEmpty() ? parser.getEntryPathString() : dir+"/"+parser.getEntryPathString();
+					final var first = restricted.get(parser.getEntryObjectId());	// else the first path is not restricted, so it differs from a path with own findings
+					if((null == first ? GitBlitSecCheckReceiveHook.ownFindings(ruleset, path) : !first.equals(path)) && seen.add(parser.getEntryObjectId().name()+" "+path)) submit(name, repository, new GitBlitSecCheckReceiveHook.Target(parser.getEntryObjectId(), path, commit, null));
+				}
+			}
+		}
+	}
+
+	private void submit(final String name, final Repository repository, final GitBlitSecCheckReceiveHook.Target target) throws InterruptedException {
+		inFlight.acquire();
+		pool.execute(() -> {
+			try {
+				blobs.increment();
+				if(GitBlitSecCheckReceiveHook.scan(repository, ruleset, target) instanceof final GitBlitSecCheckReceiveHook.Rejection r) write(name, r);
+			} catch(final Exception e) { LOG.log(Level.SEVERE, "Backfill "+name+" "+target.path()+" "+target.objectId().name()+" => "+e.getMessage(), e);
+			} finally { inFlight.release(); }
+		});
+	}
+
+	private void write(final String repository, final GitBlitSecCheckReceiveHook.Rejection r) throws IOException {
+		final var t      = r.target();
+		final var commit = null == t.commit() ? null : t.commit().name();
+		final var sb     = new StringBuilder();
+		for(final var f : r.verdict().findings()) {
+			if(format == Format.JSONL) sb.append("{\"repository\":").append(json(repository)).append(",\"commit\":").append(json(commit)).append(",\"path\":").append(json(t.path()))
+				.append(",\"blob\":").append(json(t.objectId().name())).append(",\"rule\":").append(json(f.ruleId())).append(",\"line\":").append(f.line()).append(",\"column\":").append(f.column())
+				.append(",\"secret\":").append(json(f.secret())).append("}\n");
+			else {
+				final var text = r.verdict() == GitBlitSecCheckReceiveHook.TIMEOUT ? "Scan exceeded the time budget" : r.verdict() == GitBlitSecCheckReceiveHook.TRUNCATED ? "Scan stopped at the text extraction limit"
+						: null == f.secret() ? "Possible secret file via rule "+f.ruleId() : "Possible secret "+f.secret()+" via rule "+f.ruleId();
+				sb.append("{\"ruleId\":").append(json(f.ruleId())).append(",\"level\":\"error\",\"message\":{\"text\":").append(json(text)).append("}")
+				.append(",\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":").append(json(t.path())).append("}");
+				if(f.line() > 0) sb.append(",\"region\":{\"startLine\":").append(f.line()).append(",\"startColumn\":").append(Math.max(1, f.column())).append("}");
+				sb.append("}}],\"properties\":{\"repository\":").append(json(repository)).append(",\"commit\":").append(json(commit)).append(",\"blob\":").append(json(t.objectId().name())).append("}}\n");
+			}
+			findings.increment();
+		}
+		synchronized(this) { out.write(sb.toString()); }
+	}
+
+	/** Wraps the results, one JSON object per line, into a SARIF 2.1.0 log. */
+	private static void sarif(final Path results, final Path sarif) throws IOException {
+		try(final var w = Files.newBufferedWriter(sarif, StandardCharsets.UTF_8); final var lines = Files.lines(results, StandardCharsets.UTF_8)) {
+			w.write("{\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"version\":\"2.1.0\",\"runs\":[{\"tool\":{\"driver\":{\"name\":\"GitBlitSecCheck\""
+					+ ",\"informationUri\":\"https://github.com/SkateScout/GitBlitSecCheck\"}},\"results\":[\n");
+			var first = true;
+			for(final var line : (Iterable<String>)lines::iterator) {
+				if(line.isEmpty()) continue;
+				if(!first) w.write(",\n");
+				w.write(line);
+				first = false;
+			}
+			w.write("\n]}]}\n");
+		}
+		LOG.log(Level.INFO, "Wrote "+sarif);
+	}
+
+	private static String json(final String s) {
+		if(null == s) return "null";
+		final var sb = new StringBuilder(s.length() + 2).append('"');
+		for(var i = 0; i < s.length(); i++) {
+			final var c = s.charAt(i);
+			switch(c) {
+			case '"'  -> sb.append("\\\"");
+			case '\\' -> sb.append("\\\\");
+			case '\n' -> sb.append("\\n");
+			case '\r' -> sb.append("\\r");
+			case '\t' -> sb.append("\\t");
+			default   -> { if(c < 0x20) sb.append(String.format("\\u%04x", (int)c)); else sb.append(c); }
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,39 @@
+package org.suche.gitblit.hooks;
+
+/** {@link CharSequence} wrapper that aborts a scan once its deadline ({@link System#nanoTime()}) has passed.
+ * Every regex engine and the keyword automaton read the input through {@link #charAt(int)}, so even a backtracking match gets interrupted.
+ */
+public final class DeadlineSequence implements CharSequence {
+	private static final int CHECK_INTERVAL = 4096;
+
+	/** Thrown from {@link #charAt(int)} after the deadline. */
+	public static final class TimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public TimeoutException(final String message) { super(message, null, false, false); }
+	}
+
+	private final CharSequence delegate;
+	private final long         deadline;
+	private       int          countdown = CHECK_INTERVAL;
+
+	public DeadlineSequence(final CharSequence delegate, final long deadline) { this.delegate = delegate; this.deadline = deadline; }
+
+	/** @return the content without the deadline */
+	CharSequence delegate() { return delegate; }
+
+	/** @return the {@link System#nanoTime()} the scan is aborted */
+	long deadline() { return deadline; }
+
+	@Override public int length() { return delegate.length(); }
+
+	@Override public char charAt(final int index) {
+		if(--countdown <= 0) {
+			countdown = CHECK_INTERVAL;
+			if(System.nanoTime() - deadline > 0) throw new TimeoutException("scan time budget exceeded");
+		}
+		return delegate.charAt(index);
+	}
+
+	@Override public CharSequence subSequence(final int start, final int end) { return new DeadlineSequence(delegate.subSequence(start, end), deadline); }
+	@Override public String       toString   ()                               { return delegate.toString(); }
+}
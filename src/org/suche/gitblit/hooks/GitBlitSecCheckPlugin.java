@@ -11,11 +11,17 @@ public class GitBlitSecCheckPlugin extends GitblitPlugin {
 
 	@Override public void start() throws PluginException {
 		// System.out.println("GitBlitSecCheckPlugin.start()");
+		RulesetLoader.start();
+		ScanMetrics.register();
+		ScanQueue.start();
 		super.start();
 	}
 
 	@Override public void stop() throws PluginException {
 		System.out.println("GitBlitSecCheckPlugin.stop()");
+		RulesetLoader.stop();
+		ScanMetrics.unregister();
+		ScanQueue.stop();
 		super.stop();
 	}
 
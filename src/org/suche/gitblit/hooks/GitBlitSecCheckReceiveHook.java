@@ -1,31 +1,47 @@
 package org.suche.gitblit.hooks;
 import java.io.IOException;
-import java.net.URI;
-import java.net.UnknownHostException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import org.eclipse.jgit.diff.DiffEntry;
-import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
+import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.diff.RawTextComparator;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.ReceiveCommand.Result;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.suche.gitblit.hooks.Ruleset.Finding;
+import org.suche.gitblit.hooks.Ruleset.FindingSink;
+import org.suche.gitblit.hooks.Ruleset.Rule;
 
 import com.gitblit.extensions.ReceiveHook;
 import com.gitblit.git.GitblitReceivePack;
-import com.moandjiezana.toml.Toml;
 
 import ro.fortsoft.pf4j.Extension;
 
@@ -35,92 +51,354 @@ import ro.fortsoft.pf4j.Extension;
 @Extension public class GitBlitSecCheckReceiveHook extends ReceiveHook {
 	private static final Logger LOG = Logger.getLogger(GitBlitSecCheckReceiveHook.class.getCanonicalName());
 
-	public static       Ruleset ruleset      = null;
-	private static final Path    path         = Path.of("etc/gitleaks.toml");
-	private static final URI     defaultRules = URI.create("https://raw.githubusercontent.com/gitleaks/gitleaks/refs/heads/master/config/gitleaks.toml");
+	/** Hands the blobs deferred by {@link #onPreReceive} over to the {@link ScanQueue} for the refs that were updated. */
+	@Override public void onPostReceive(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands) {
+		ScanQueue.start();
+		ScanQueue.accepted(receivePack, commands);
+	}
 
-	static {
-		if(Files.exists(path)) {
-			try {
-				ruleset = Ruleset.of(Files.readString(path));
-			} catch(final Throwable t) { LOG.log(Level.SEVERE, "Fetch GitBlitSecCheckReceiveHook rules => "+t.getMessage(), t); }
-		} else {
-			new Thread(()->{
+	private static final Pattern ignoreFiles = Pattern.compile("(?i)[.](?:eot|[ot]tf|woff2|bmp|gif|jpe?g|png|svg|bin|socket|vsidx|v2|suo|wsuo|dll|pdb|exe|gltf|tiff?)$");
+	private static final Pattern tikaFiles   = Pattern.compile("(?i)[.](?:docx?|xlsx?|pdf)$");
+	private static final Pattern riskyFiles  = Pattern.compile(System.getProperty("GitBlitSecCheck.riskyFiles"
+			, "(?i)(?:^|/)(?:[.]env[^/]*|id_[rdec]+sa[^/]*|[^/]*(?:secret|credential|passw|token)[^/]*|[^/]*[.](?:pem|key|p12|pfx|jks|keystore|properties|ya?ml|json|xml|conf|cfg|ini|toml|tfvars))$"));
+
+	private static final boolean  failFast = Boolean.getBoolean("GitBlitSecCheck.failFast");	// pushes of a single command only, the blobs of a push are scanned together
+	private static final ScanPool pool     = new ScanPool(Integer.getInteger("GitBlitSecCheck.parallel", Runtime.getRuntime().availableProcessors())
+			,                                             Long   .getLong   ("GitBlitSecCheck.maxInFlightBytes", 256L << 20));
+	private static final long     maxBlobSize  = Long   .getLong   ("GitBlitSecCheck.maxBlobSize" , 1L << 30);
+	private static final long     maxTikaSize  = Long   .getLong   ("GitBlitSecCheck.maxTikaSize" , 32L << 20);
+	private static final int      inMemorySize = Integer.getInteger("GitBlitSecCheck.inMemorySize", 4 << 20);
+	private static final int      chunkSize    = Integer.getInteger("GitBlitSecCheck.chunkSize"   , 1 << 20);
+	private static final int      chunkOverlap = Math.min(chunkSize / 2, Integer.getInteger("GitBlitSecCheck.chunkOverlap", 64 << 10));
+	private static final ScanCache cache   = new ScanCache(Path.of(System.getProperty("GitBlitSecCheck.cache", "etc/gitleaks.cache")), Integer.getInteger("GitBlitSecCheck.cacheEntries", 100_000), SharedScanStore.configured());
+
+	private static final boolean  incremental  = Boolean.parseBoolean(System.getProperty("GitBlitSecCheck.incremental", "true"));
+	private static final int      contextLines = Integer.getInteger("GitBlitSecCheck.contextLines", 5);
+	private static final int      maxFindings  = Integer.getInteger("GitBlitSecCheck.maxFindings" , 20);	// per blob
+
+	/** Blob to scan with the first new commit and path introducing it.
+	 * {@code base} is the blob at the same path in the first parent (modification without rename) or null for a full scan. */
+	record Target(ObjectId objectId, String path, RevCommit commit, ObjectId base) { }
+
+	private static final long     timeBudget      = Long.getLong("GitBlitSecCheck.timeBudgetMillis", 30_000);
+	private static final boolean  rejectOnTimeout = Boolean.parseBoolean(System.getProperty("GitBlitSecCheck.rejectOnTimeout", "true"));
+	private static final long     pushBudget      = Long.getLong("GitBlitSecCheck.preReceiveBudgetMillis", 0);	// 0 scans every blob before the push is accepted
+	private static final long     FOREVER         = 1L << 62;	// nanos, a deadline this far ahead is none
+	static final ScanCache.Verdict TIMEOUT  = new ScanCache.Verdict(List.of(new ScanCache.Finding("timeout", null, 0, 0)));
+	static final ScanCache.Verdict DEFERRED = new ScanCache.Verdict(List.of(new ScanCache.Finding("deferred", null, 0, 0)));	// push budget spent, scanned after the push
+	static final ScanCache.Verdict TRUNCATED = new ScanCache.Verdict(List.of(new ScanCache.Finding("truncated", null, 0, 0)));	// Tika write limit reached, handled like a timeout
+
+	/** @return {@link System#nanoTime()} deadline {@code millis} from now, none if millis <= 0 */
+	static long deadline(final long millis) { return System.nanoTime() + (millis <= 0 ? FOREVER : millis * 1_000_000); }
+
+	/** @return content that aborts the scan with {@link DeadlineSequence.TimeoutException} after the deadline */
+	private static CharSequence budget(final CharSequence content, final long deadline) { return deadline - System.nanoTime() > FOREVER / 2 ? content : new DeadlineSequence(content, deadline); }
+
+	record Rejection(Target target, ScanCache.Verdict verdict) {
+		String message() {
+			if(verdict == TIMEOUT) return "Scan of file ["+target.path+"] exceeded the time budget of "+timeBudget+" ms";
+			if(verdict == TRUNCATED) return "Scan of file ["+target.path+"] stopped at the text extraction limit of "+TikaScanner.writeLimit+" chars";
+			final var commit = null == target.commit ? "" : " of commit ["+target.commit.abbreviate(10).name()+"]";
+			final var sb     = new StringBuilder();
+			for(final var f : verdict.findings()) {
+				if(!sb.isEmpty()) sb.append('\n');
+				if(null == f.secret()) sb.append("Found possible secret file ["+target.path+"] via rule ["+f.ruleId()+"]"+commit);
+				else sb.append("Found possible secret ["+f.secret()+"] via rule ["+f.ruleId()+"] in file ["+target.path+"] at line "+f.line()+" column "+f.column()+commit);
+			}
+			return sb.toString();
+		}
+	}
+
+	static Rejection scan(final Repository repository, final Ruleset ruleset, final Target target) throws MissingObjectException, IOException, InterruptedException { return scan(repository, ruleset, target, false, 0); }
+
+	/** @param deferrable the push has a budget, a blob not finished by {@code pushDeadline} is returned as {@link #DEFERRED}
+	 * @param pushDeadline {@link System#nanoTime()} the push budget ends, ignored if not deferrable */
+	static Rejection scan(final Repository repository, final Ruleset ruleset, final Target target, final boolean deferrable, final long pushDeadline) throws MissingObjectException, IOException, InterruptedException {
+		final var path     = target.path();
+		final var objectId = target.objectId();
+		final var base     = target.base();
+		if(ignoreFiles.matcher(path).find() || !ruleset.scans(path)) { ScanMetrics.ignored.increment(); return null; }
+		if(ruleset.pathMatch(path) instanceof final Rule r) return new Rejection(target, new ScanCache.Verdict(List.of(new ScanCache.Finding(r.id(), null, 0, 0))));
+		final var applicable = ruleset.applicable(path);	// null if no rule is excluded by the path
+		if(null != applicable && applicable.isEmpty()) { ScanMetrics.ignored.increment(); return null; }
+		final var exact   = null == applicable && !ruleset.pathDependent(path);	// the verdict holds for the blob at any path of the same scan mode
+		final var useTika = tikaFiles.matcher(path).find();
+		if(exact && cache.get(ruleset, objectId, useTika) instanceof final ScanCache.Verdict v) {
+			ScanMetrics.cacheHits.increment();
+			return v.clean() ? null : new Rejection(target, v);
+		}
+		ScanMetrics.cacheMisses.increment();
+		if(deferrable && pushDeadline - System.nanoTime() <= 0) return new Rejection(target, DEFERRED);
+		final var start = System.nanoTime();
+		try(final var reader = repository.newObjectReader()) {
+			final var size    = reader.getObjectSize(objectId, Constants.OBJ_BLOB);
+			if(size > (useTika ? maxTikaSize : maxBlobSize)) {
+				LOG.log(Level.WARNING, "Skip ["+path+"] size "+size+" exceeds limit");
+				ScanMetrics.oversized.increment();
+				return null;
+			}
+			ScanMetrics.blobs.increment();
+			ScanMetrics.bytes.add(size);
+			final var inMemory = useTika || size <= inMemorySize;
+			final var baseSize = incremental && !useTika && null != base ? reader.getObjectSize(base, Constants.OBJ_BLOB) : -1;
+			final var partial  = baseSize >= 0 && baseSize <= inMemorySize && size <= inMemorySize;
+			try(final var _ = pool.reserve(inMemory ? size + (partial ? baseSize : 0) : chunkSize + chunkOverlap)) {
+				final var loader   = reader.open(objectId, Constants.OBJ_BLOB);
+				final var blobEnd  = deadline(timeBudget);
+				final var byPush   = deferrable && pushDeadline - blobEnd < 0;	// the push budget ends first
+				final var deadline = byPush ? pushDeadline : blobEnd;
+				final var findings = new ArrayList<ScanCache.Finding>();
+				final FindingSink sink = f -> {
+					findings.add(new ScanCache.Finding(f.rule().id(), Ruleset.redact(f.secret()), f.line(), f.column()));
+					return findings.size() < maxFindings;
+				};
+				var complete  = true;
+				var truncated = false;
 				try {
-					final var bytes = defaultRules.toURL().openStream().readAllBytes();
-					LOG.log(Level.INFO, "Download "+defaultRules);
-					Files.write(path, bytes);
-					LOG.log(Level.INFO, "Stored "+path);
-					final var toml = new Toml().read(new String(bytes)).toMap();
-					@SuppressWarnings("unchecked") final var r = Ruleset.ofListMap((List<Map<String,Object>>)toml.get("rules"));
-					ruleset = r;
-				} catch(final UnknownHostException t) { LOG.log(Level.SEVERE, "Fetch GitBlitSecCheckReceiveHook rules from "+defaultRules+" failed. => "+t.getMessage());
-				} catch(final Throwable            t) { LOG.log(Level.SEVERE, "Fetch GitBlitSecCheckReceiveHook rules => "+t.getMessage(), t);
+					if(useTika) {
+						final var tikaStart = System.nanoTime();
+						try { truncated = !TikaScanner.scan(ruleset, path, applicable, loader.getCachedBytes(Integer.MAX_VALUE), deadline, sink); } catch(final IOException e) { return null; }	// unparsable, not cached
+						finally { ScanMetrics.tika.record(System.nanoTime() - tikaStart); }
+					} else if(partial && addedLines(reader, base, loader.getCachedBytes()) instanceof final Added added) {
+						ruleset.scan(budget(added.text(), deadline), path, applicable, added.remap(sink));
+						complete = false;
+					} else if(inMemory) {
+						final var bytes = loader.getCachedBytes();
+						if(!Latin1Sequence.isBinary(bytes, 0, bytes.length)) ruleset.scan(budget(new Latin1Sequence(bytes), deadline), path, applicable, sink);
+					} else scanStream(new WindowScanner(ruleset, path, applicable, chunkOverlap, sink), loader, deadline);
+				} catch(final DeadlineSequence.TimeoutException e) {
+					if(byPush) return new Rejection(target, DEFERRED);
+					LOG.log(Level.WARNING, "Scan of ["+path+"] "+objectId.name()+" aborted after "+timeBudget+" ms");
+					ScanMetrics.timeouts.increment();
+					return rejectOnTimeout ? new Rejection(target, TIMEOUT) : null;
 				}
-			}, "Fetch security rules").start();
+				if(truncated && findings.isEmpty()) {	// the rest of the document may hide a secret
+					LOG.log(Level.WARNING, "Scan of ["+path+"] "+objectId.name()+" stopped at the Tika write limit of "+TikaScanner.writeLimit+" chars");
+					ScanMetrics.timeouts.increment();
+					return rejectOnTimeout ? new Rejection(target, TRUNCATED) : null;
+				}
+				final var verdict = findings.isEmpty() ? ScanCache.Verdict.CLEAN : new ScanCache.Verdict(List.copyOf(findings));
+				if(complete && !truncated && exact) cache.put(ruleset, objectId, useTika, verdict);	// a partial scan does not know all findings of the blob
+				return verdict.clean() ? null : new Rejection(target, verdict);
+			}
+		} finally { ScanMetrics.blob.record(System.nanoTime() - start); }
+	}
+
+	/** Added lines of a blob, hunk h starts at line {@code textLine[h]} of the text and {@code fileLine[h]} of the blob. */
+	record Added(CharSequence text, int[] textLine, int[] fileLine, int hunks) {
+		/** @return sink receiving the findings with the lines of the blob */
+		FindingSink remap(final FindingSink sink) {
+			return f -> {
+				var h = hunks - 1;
+				while(h > 0 && textLine[h] > f.line()) h--;
+				return sink.accept(new Finding(f.rule(), f.secret(), f.start(), f.end(), fileLine[h] + f.line() - textLine[h], f.column()));
+			};
 		}
 	}
 
-	@Override public void onPostReceive(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands) { }
+	/** @return the added or changed lines of the blob against its base with {@code contextLines} around each hunk, null if one side is binary */
+	private static Added addedLines(final ObjectReader reader, final ObjectId base, final byte[] bytes) throws IOException {
+		final var baseBytes = reader.open(base, Constants.OBJ_BLOB).getCachedBytes();
+		if(RawText.isBinary(baseBytes) || RawText.isBinary(bytes)) return null;
+		final var a     = new RawText(baseBytes);
+		final var b     = new RawText(bytes);
+		final var edits = DiffAlgorithm.getAlgorithm(SupportedAlgorithm.HISTOGRAM).diff(RawTextComparator.DEFAULT, a, b);
+		final var sb       = new StringBuilder();
+		final var textLine = new int[Math.max(1, edits.size())];
+		final var fileLine = new int[textLine.length];
+		var hunks = 0;
+		var lines = 1;
+		var next  = 0;
+		for(final var e : edits) {
+			if(e.getEndB() <= e.getBeginB()) continue;	// pure deletion
+			final var from = Math.max(next, e.getBeginB() - contextLines);
+			final var to   = Math.min(b.size(), e.getEndB() + contextLines);
+			if(from >= to) continue;
+			if(from > next && !sb.isEmpty()) { sb.append('\n'); lines++; }
+			textLine[hunks] = lines;
+			fileLine[hunks] = from + 1;
+			hunks++;
+			sb.append(b.getString(from, to, false));
+			lines += to - from;
+			next   = to;
+		}
+		return new Added(sb, textLine, fileLine, hunks);
+	}
 
-	private static final Pattern ignoreFiles = Pattern.compile("(?i)[.](?:eot|[ot]tf|woff2|bmp|gif|jpe?g|png|svg|bin|socket|vsidx|v2|suo|wsuo|dll|pdb|exe|gltf|tiff?)$");
-	private static final Pattern tikaFiles   = Pattern.compile("(?i)[.](?:docx?|xlsx?|pdf)$");
+	/** Scans a large blob in windows of {@code chunkSize} bytes, each window repeats the last {@code chunkOverlap} bytes of the previous one
+	 * so a secret crossing a chunk border is still found. */
+	private static void scanStream(final WindowScanner scanner, final ObjectLoader loader, final long deadline) throws IOException {
+		final var buf = new byte[chunkOverlap + chunkSize];
+		try(final var in = loader.openStream()) {
+			var carry = 0;
+			for(var first = true;; first = false) {
+				final var n = in.readNBytes(buf, carry, buf.length - carry);
+				if(n <= 0) return;
+				final var filled = carry + n;
+				if(first && Latin1Sequence.isBinary(buf, 0, filled)) return;
+				if(!scanner.scan(budget(new Latin1Sequence(buf, 0, filled), deadline)) || filled < buf.length) return;
+				carry = chunkOverlap;
+				System.arraycopy(buf, filled - carry, buf, 0, carry);
+			}
+		}
+	}
 
-	private String scan(final Repository repository, final String path, final ObjectId objectId) throws MissingObjectException, IOException {
-		if(ruleset == null) {
-			LOG.log(Level.SEVERE, "⚡ Missing ruleset for GitBlitSecCheckReceiveHook");
+	/** Scans the blobs on the shared {@link ScanPool} in the given order, rejections are ordered by path.
+	 * @param stopEarly cancel the other blobs after the first finding, only if every blob belongs to the one command this rejects
+	 * @param deferred receives the blobs not finished before the push deadline, null if the push has no budget
+	 * @param pushDeadline ignored if deferred is null */
+	static List<Rejection> scanAll(final Repository repository, final Ruleset ruleset, final List<Target> toScan, final boolean stopEarly, final long pushDeadline, final List<Target> deferred) throws InterruptedException {
+		final var tasks = toScan.stream().map(t->(Callable<Rejection>)() -> {
+			final var r = scan(repository, ruleset, t, null != deferred, pushDeadline);
+			if(null == r || r.verdict() != DEFERRED) return r;
+			deferred.add(t);
 			return null;
+		}).toList();
+		final var rejections = pool.invokeAll(tasks, stopEarly);
+		rejections.sort(Comparator.comparing(r -> r.target().path()));
+		LOG.log(Level.FINE, "Scan cache hits "+ScanMetrics.cacheHits.sum()+" misses "+ScanMetrics.cacheMisses.sum());
+		return rejections;
+	}
+
+	/** @return the blobs in scan order under a push budget, risky paths first, then by size with Tika documents last */
+	private static List<Target> prioritized(final Repository repository, final List<Target> targets) throws IOException {
+		final var size = new HashMap<Target, Long>();
+		try(final var reader = repository.newObjectReader()) {
+			for(final var t : targets) size.put(t, reader.getObjectSize(t.objectId(), Constants.OBJ_BLOB));
 		}
-		if(ignoreFiles.matcher(path).find()) return null;
-		final var loader    = repository.open(objectId);
-		final var bytes = loader.getBytes();
-		final var useTika   = tikaFiles.matcher(path).find();
-		final var content  = useTika ? TikaScanner.parse(bytes) : new String(bytes);
-		if(content == null) return null;
-		final var found = ruleset.findMatch(content);
-		return (null == found ? null : "Found possible secret ["+found.getKey()+"] via rule ["+found.getValue().id()+"] in file ["+path+"]");
+		return targets.stream().sorted(Comparator.<Target>comparingInt(t -> riskyFiles.matcher(t.path()).find() ? 0 : tikaFiles.matcher(t.path()).find() ? 2 : 1)
+				.thenComparingLong(size::get)).toList();
 	}
 
-	@Override public void onPreReceive(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands) {
-		final var repository = receivePack.getRepository();
-		final var user       = receivePack.getUserModel();
-		try (var revWalk     = receivePack.getRevWalk()) {
-			for (final ReceiveCommand cmd : commands) {
-				if (cmd.getType() != ReceiveCommand.Type.UPDATE && cmd.getType() != ReceiveCommand.Type.CREATE) continue; // Only process updates and creations (ignore deletes for content scan)
-				final var newId     = cmd.getNewId();
-				final var oldId     = cmd.getOldId();
-				final var newCommit = revWalk.parseCommit(newId);
-				final var toScan = new HashMap<ObjectId, String>();
-				if(oldId == null) {
-					final var tree      = newCommit.getTree();
-					final var treeId    = tree.getId();
-					try (var treeWalk   = new TreeWalk(repository)) {
-						treeWalk.reset(treeId);
-						treeWalk.setRecursive(true);
-						while (treeWalk.next()) toScan.put(treeWalk.getObjectId(0), treeWalk.getPathString());
-					}
-				} else {
-					final var rw = receivePack.getRevWalk();
-					try(final var df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
-						df.setRepository(repository);
-						df.setDiffComparator(RawTextComparator.DEFAULT);
-						df.setDetectRenames(true);
-						final var diffs = df.scan(rw.parseCommit(oldId), newCommit);
-						for (final DiffEntry diff : diffs)if(diff.getNewId().toObjectId() instanceof final ObjectId objectId) toScan.put(objectId, diff.getNewPath());
-					}
+	/** @return true if the path alone excludes some or all rules, fires a path only rule or selects Tika, then the verdict of the blob does not hold for its other paths */
+	static boolean restricted(final Ruleset ruleset, final String path) {
+		return ignoreFiles.matcher(path).find() || !ruleset.scans(path) || null != ruleset.applicable(path) || ruleset.pathDependent(path) || ownFindings(ruleset, path);
+	}
+
+	/** @return true if the blob under this path has findings a text scan under a path that is not {@link #restricted(Ruleset, String)} misses */
+	static boolean ownFindings(final Ruleset ruleset, final String path) { return null != ruleset.pathMatch(path) || tikaFiles.matcher(path).find(); }
+
+	/** Enumerates the blobs introduced by the push with one walk over the new commits of all commands, excluding everything reachable from existing refs
+	 * other than the ones {@link ScanQueue} sets on findings.
+	 * Every blob is returned once, with the oldest new commit and the path introducing it.
+	 * A blob whose first path is {@link #restricted(Ruleset, String)} is returned again for every other path it is added under in the new commits,
+	 * any blob, new or not, for every path with {@link #ownFindings(Ruleset, String)} it is added or renamed to. */
+	static List<Target> newBlobs(final Repository repository, final Ruleset ruleset, final ObjectWalk walk, final Collection<ReceiveCommand> commands) throws IOException {
+		walk.sort(RevSort.TOPO   , true);
+		walk.sort(RevSort.REVERSE, true);
+		var starts = 0;
+		for(final var cmd : commands) if(walk.peel(walk.parseAny(cmd.getNewId())) instanceof final RevCommit c) { walk.markStart(c); starts++; }
+		if(starts == 0) return List.of();
+		for(final var ref : repository.getRefDatabase().getRefs()) if(ref.getObjectId() instanceof final ObjectId id && !ref.getName().startsWith(ScanQueue.QUARANTINE) && !ref.getName().startsWith(ScanQueue.FLAGGED)) {
+			try {
+				if(walk.peel(walk.parseAny(id)) instanceof final RevCommit c) walk.markUninteresting(c);
+			} catch(final MissingObjectException _) { }
+		}
+		final var commits = new ArrayList<RevCommit>();
+		final var roots   = new HashMap<ObjectId, RevCommit>();
+		for(RevCommit c; null != (c = walk.next());) { commits.add(c); roots.putIfAbsent(c.getTree(), c); }
+		final var blobs = new ArrayList<Target>();
+		final var first = new HashMap<ObjectId, String>();
+		RevCommit commit = null;
+		for(RevObject o; null != (o = walk.nextObject());) {
+			if(o instanceof RevTree && roots.get(o) instanceof final RevCommit c) commit = c;
+			else if(o instanceof RevBlob) {
+				final var path = walk.getPathString();
+				blobs.add(new Target(o.copy(), path, commit, base(walk, commit, path)));
+				first.put(o.copy(), path);
+			}
+		}
+		otherPaths(ruleset, walk, commits, first, blobs);
+		return blobs;
+	}
+
+	/** Adds the other paths of the new blobs whose verdict does not hold for them and the paths with own findings of any blob,
+	 * from the diff of each new commit against its parents. A path is added by a commit if no parent has the blob under it. */
+	private static void otherPaths(final Ruleset ruleset, final ObjectWalk walk, final List<RevCommit> commits, final Map<ObjectId, String> first, final List<Target> blobs) throws IOException {
+		final var seen = new HashSet<String>();
+		try(final var tw = new TreeWalk(walk.getObjectReader())) {
+			tw.setRecursive(true);
+			for(final var c : commits) {
+				tw.reset();
+				tw.addTree(c.getTree());
+				for(final var parent : c.getParents()) tw.addTree(walk.parseCommit(parent).getTree());
+				tw.setFilter(TreeFilter.ANY_DIFF);
+				while(tw.next()) {
+					if(tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB || inParent(tw)) continue;
+					final var id   = tw.getObjectId(0);
+					final var path = tw.getPathString();
+					final var add  = first.get(id) instanceof final String p ? !p.equals(path) && (restricted(ruleset, p) || ownFindings(ruleset, path)) : ownFindings(ruleset, path);
+					if(add && seen.add(id.name()+" "+path)) blobs.add(new Target(id, path, c, base(walk, c, path)));
 				}
-				StringBuilder error = null;
-				for(final var e : toScan.entrySet()) if(scan(repository, e.getValue(), e.getKey()) instanceof final String rejection) {
-					if(null == error) error = new StringBuilder();
-					if(error.isEmpty()) error.append("\n");
-					error.append(rejection);
+			}
+		}
+	}
+
+	/** @return true if a parent tree has the blob of the commit under the same path */
+	private static boolean inParent(final TreeWalk tw) {
+		for(var i = 1; i < tw.getTreeCount(); i++) if(tw.idEqual(0, i)) return true;
+		return false;
+	}
+
+	/** @return blob at the same path in the first parent if the added lines mode applies */
+	private static ObjectId base(final ObjectWalk walk, final RevCommit commit, final String path) throws IOException {
+		if(!incremental || null == commit || commit.getParentCount() == 0) return null;
+		final var parent = walk.parseCommit(commit.getParent(0));
+		try(final var tw = TreeWalk.forPath(walk.getObjectReader(), path, parent.getTree())) {
+			return null == tw || tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB ? null : tw.getObjectId(0);
+		}
+	}
+
+	static int check(final Repository repository, final Ruleset ruleset, final Collection<ReceiveCommand> active) throws IOException, InterruptedException { return check(repository, ruleset, active, deadline(0), null); }
+
+	/** Scans the content the commands introduce and rejects every command whose new commits carry a finding.
+	 * @param deferred receives the blobs left unscanned at the push deadline, null if there is none
+	 * @return number of findings, 0 if the push is clean */
+	static int check(final Repository repository, final Ruleset ruleset, final Collection<ReceiveCommand> active, final long pushDeadline, final List<Target> deferred) throws IOException, InterruptedException {
+		final var start = System.nanoTime();
+		try (var walk = new ObjectWalk(repository)) {
+			final var blobs      = newBlobs(repository, ruleset, walk, active);
+			final var toScan     = null == deferred ? blobs.stream().sorted(Comparator.comparing(Target::path)).toList() : prioritized(repository, blobs);
+			final var rejections = scanAll(repository, ruleset, toScan, failFast && active.size() == 1, pushDeadline, deferred);
+			if(rejections.isEmpty()) return 0;
+			ScanMetrics.rejectedPushes.increment();
+			try(var rw = new RevWalk(repository)) {
+				for(final var cmd : active) {
+					if(!(rw.peel(rw.parseAny(cmd.getNewId())) instanceof final RevCommit tip)) continue;
+					final var messages = new ArrayList<String>();
+					for(final var r : rejections) if(null == r.target().commit() || rw.isMergedInto(rw.parseCommit(r.target().commit()), tip)) messages.add(r.message());
+					if(!messages.isEmpty()) cmd.setResult(Result.REJECTED_OTHER_REASON, "\n"+String.join("\n", messages));
 				}
-				if(null != error) {
-					LOG.log(Level.WARNING, "Reject GIT operation from "+user.displayName+" <"+user.emailAddress+"> found possible secrets");
-					cmd.setResult(Result.REJECTED_OTHER_REASON, error.toString());
+			}
+			return rejections.size();
+		} finally {
+			ScanMetrics.pushes.increment();
+			ScanMetrics.push.record(System.nanoTime() - start);
+		}
+	}
 
+	@Override public void onPreReceive(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands) {
+		final var repository = receivePack.getRepository();
+		final var user       = receivePack.getUserModel();
+		final var active     = commands.stream().filter(c->c.getType() != ReceiveCommand.Type.DELETE && c.getResult() == Result.NOT_ATTEMPTED).toList(); // ignore deletes for content scan
+		RulesetLoader.start();	// usually done by the plugin, repeated calls are ignored
+		final var ruleset    = RulesetLoader.ruleset();	// the whole push uses one ruleset, even if a reload happens meanwhile
+		if(ruleset == null) {
+			LOG.log(Level.SEVERE, "⚡ Missing ruleset for GitBlitSecCheckReceiveHook");
+			return;
+		}
+		try {
+			final var deferred = pushBudget > 0 ? Collections.synchronizedList(new ArrayList<Target>()) : null;
+			if(check(repository, ruleset, active, deadline(pushBudget), deferred) > 0) LOG.log(Level.WARNING, "Reject GIT operation from "+user.displayName+" <"+user.emailAddress+"> found possible secrets");
+			final var accepted = active.stream().filter(c->c.getResult() == Result.NOT_ATTEMPTED).toList();
+			if(null != deferred && !deferred.isEmpty() && !accepted.isEmpty()) {
+				LOG.log(Level.INFO, "Defer "+deferred.size()+" blobs of the push to "+receivePack.getRepositoryModel().name+" after the budget of "+pushBudget+" ms");
+				ScanMetrics.deferred.add(deferred.size());
+				try { ScanQueue.defer(receivePack, accepted, deferred); } catch(final IOException e) {	// the deferred blobs would never be scanned
+					LOG.log(Level.SEVERE, "Queue deferred scan of "+receivePack.getRepositoryModel().name+" => "+e.getMessage()+", reject the push", e);
+					for(final var c : accepted) c.setResult(Result.REJECTED_OTHER_REASON, "Secret scan could not be queued, please push again later");
 				}
 			}
 		} catch (final Exception e) { LOG.log(Level.SEVERE, "onPreReceive() => "+e.getMessage(), e); }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package org.suche.gitblit.hooks;
+
+import java.nio.charset.StandardCharsets;
+
+/** {@link CharSequence} view on a byte range, every byte is one ISO-8859-1 char.
+ * The rules only match ASCII, so multi byte UTF-8 sequences do not need decoding and the blob bytes need no copy.
+ */
+public record Latin1Sequence(byte[] bytes, int offset, int length) implements CharSequence {
+	public Latin1Sequence(final byte[] bytes) { this(bytes, 0, bytes.length); }
+
+	/** Git's heuristic: content with a NUL byte in the first 8000 bytes is binary. */
+	public static boolean isBinary(final byte[] bytes, final int offset, final int length) {
+		for(int i = offset, end = offset + Math.min(length, 8000); i < end; i++) if(bytes[i] == 0) return true;
+		return false;
+	}
+
+	@Override public int          length     ()                             { return length; }
+	@Override public char         charAt     (final int index)              { return (char)(bytes[offset + index] & 0xFF); }
+	@Override public CharSequence subSequence(final int start, final int end) {
+		if(start < 0 || start > end || end > length) throw new IndexOutOfBoundsException("["+start+","+end+") of "+length);
+		return new Latin1Sequence(bytes, offset + start, end - start);
+	}
+	@Override public String       toString   ()                             { return new String(bytes, offset, length, StandardCharsets.ISO_8859_1); }
+}
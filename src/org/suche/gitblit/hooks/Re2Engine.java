@@ -0,0 +1,28 @@
+package org.suche.gitblit.hooks;
+
+import java.util.Map;
+
+import com.google.re2j.Pattern;
+
+/** Linear time {@link RegexEngine} based on RE2/J, a pathological input can not make a rule backtrack. */
+public final class Re2Engine implements RegexEngine {
+	public Re2Engine() { Pattern.class.getName(); }	// fail here if RE2/J is not on the classpath
+
+	record Re2Matcher(com.google.re2j.Matcher m) implements Matcher {
+		@Override public boolean find      ()                { return m.find      (); }
+		@Override public boolean find      (final int from)  { return m.find      (from); }
+		@Override public int     groupCount()                { return m.groupCount(); }
+		@Override public String  group     ()                { return m.group     (); }
+		@Override public String  group     (final int group) { return m.group     (group); }
+		@Override public int     start     ()                { return m.start     (); }
+		@Override public int     end       ()                { return m.end       (); }
+	}
+
+	@Override public Compiled compile(final String regex) {
+		final var p = Pattern.compile(regex);
+		return new Compiled() {
+			@Override public Map<String,Integer> namedGroups()                   { return p.namedGroups(); }
+			@Override public Matcher             matcher    (final CharSequence input) { return new Re2Matcher(p.matcher(input)); }
+		};
+	}
+}
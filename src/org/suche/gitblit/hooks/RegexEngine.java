@@ -0,0 +1,56 @@
+package org.suche.gitblit.hooks;
+
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/** Regex implementation behind the rule alternations of a {@link Ruleset}.
+ * {@link #JDK} is the backtracking {@link java.util.regex.Pattern}, {@link Re2Engine} the linear time RE2/J automaton the gitleaks rules are written for.
+ * Selected by -DGitBlitSecCheck.regexEngine=jdk|re2.
+ */
+public interface RegexEngine {
+	interface Compiled {
+		Map<String,Integer> namedGroups();
+		Matcher             matcher    (CharSequence input);
+	}
+
+	interface Matcher {
+		boolean find      ();
+		boolean find      (int from);	// resets the matcher and searches from the index on
+		int     groupCount();
+		String  group     ();
+		String  group     (int group);
+		int     start     ();
+		int     end       ();
+	}
+
+	Compiled compile(String regex);
+
+	record JdkMatcher(java.util.regex.Matcher m) implements Matcher {
+		@Override public boolean find      ()                { return m.find      (); }
+		@Override public boolean find      (final int from)  { return m.find      (from); }
+		@Override public int     groupCount()                { return m.groupCount(); }
+		@Override public String  group     ()                { return m.group     (); }
+		@Override public String  group     (final int group) { return m.group     (group); }
+		@Override public int     start     ()                { return m.start     (); }
+		@Override public int     end       ()                { return m.end       (); }
+	}
+
+	RegexEngine JDK = regex -> {
+		final var p = Pattern.compile(regex);
+		return new Compiled() {
+			@Override public Map<String,Integer> namedGroups()                   { return p.namedGroups(); }
+			@Override public Matcher             matcher    (final CharSequence input) { return new JdkMatcher(p.matcher(input)); }
+		};
+	};
+
+	RegexEngine DEFAULT = of(System.getProperty("GitBlitSecCheck.regexEngine", "jdk"));
+
+	static RegexEngine of(final String name) {
+		if("re2".equalsIgnoreCase(name)) {
+			try { return new Re2Engine(); } catch(final LinkageError e) { Logger.getLogger(RegexEngine.class.getCanonicalName()).log(Level.SEVERE, "RE2/J not available, use jdk => "+e.getMessage()); }
+		}
+		return JDK;
+	}
+}
@@ -1,14 +1,20 @@
 package org.suche.gitblit.hooks;
 
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,9 +24,16 @@ import java.util.stream.Collectors;
 
 import com.moandjiezana.toml.Toml;
 
-public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Rule> groupToRule) {
+/** Compiled rules of a gitleaks.toml.
+ * {@code rules} have a regex, {@code pathRules} fire on the file path alone. {@code scoped} marks the rules restricted by a path or excluded by path allowlists,
+ * {@link #applicable(String)} evaluates them once per file and the keyword candidates are intersected with the result.
+ */
+public record Ruleset(Map<String, Rule> ruleMap, List<Rule> rules, List<Rule> pathRules, List<Rule.Allowlists> allowlists, RegexEngine engine, Alternation all
+		, AhoCorasick keywords, BitSet unfiltered, BitSet scoped, Map<BitSet,Alternation> alternations, String fingerprint) {
 	private static Logger LOG = Logger.getLogger(Ruleset.class.getCanonicalName());
-	public record Allowlists(String description, Set<String> paths) { }
+
+	/** Rules and global allowlists of one gitleaks.toml, the unit stored in the snapshot. */
+	public record Config(List<Rule> rules, List<Rule.Allowlists> allowlists) implements Serializable { }
 	public enum KeywordGroupType { raw,  multi_case }
 	public enum CaseVariants {
 		CONSTANT_CASE     ("CONSTANT_CASE"   ),
@@ -53,7 +66,7 @@ public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Ru
 			String            keywordGroup    , // A comma-separated list of keyword parts used to construct variable names on the left-hand side of assignment expressions. The pipe delimiter (`|`) indicates mutually exclusive alternatives where zero or one keyword may be selected from the associated keyword part. Empty content between pipes, or the keyword part is terminated by a pipe indicates the entire keyword part as optional. Variables in the resulting regex pattern are ordered by their sequential appearance of keyword parts.
 			KeywordGroupType  keywordGroupType, // Indicates whether to inject `keywordGroup` directly as provided, or generate multiple case variant combinations for the left-hand side of the expression. This property is mutually exclusive to `caseVariants`, either one can be defined.
 			Set<CaseVariants> caseVariants      // Array of case variants to consider when generating the combination of variable names. The variable names in the regex as placed in same order of the case variants are defined. This is useful when we observe a particular case occurs commonly than others, which improves the performance of the regex.
-			) {
+			) implements Serializable {
 
 		public static AssignmentContext of(final Map<String,Object> m) {
 			final var            keywordGroup     = (String)m.get("keywordGroup");
@@ -65,7 +78,7 @@ public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Ru
 	}
 
 	public enum RegexTarget { match, line }
-	public enum Condition { AND }
+	public enum Condition { OR, AND }
 
 	public record Rule (
 			String            id               , // 3...100
@@ -81,31 +94,36 @@ public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Ru
 			Pattern           path             ,  // 5...   RE2-compatible regular expression for detecting the secret.
 			List<Allowlists>  allowlists       ,
 			Long              secretGroup
-			) {
+			) implements Serializable {
 
 		final static Pattern PCRE2_0 = Pattern.compile("([^\\\\])[{](?![0-9])");
 		final static Pattern PCRE2_1 = Pattern.compile("\\(\\?P<[a-zA-Z]*_[a-zA-Z_]*>");
 		final static Function<MatchResult,String> REP_1 = e ->e.group(0).replace("_", "");
 
-		static Pattern pattern(final String v) {
-			if(v == null || v.isEmpty()) return null;
+		/** Rewrites the PCRE2/RE2 specific syntax of gitleaks for {@link RegexEngine}s */
+		static String rewrite(final String v) {
 			var p0 =v.replace("{{", "⚡");
 			p0 = PCRE2_0.matcher(p0).replaceAll("$1❌");
 			p0 = PCRE2_1.matcher(p0).replaceAll(REP_1);
 			p0 = p0.replace("❌","[{]").replace("⚡","[{][{]");
-			final var p1 = p0.replace("(?P<", "(?<");
+			return p0.replace("(?P<", "(?<");
+		}
+
+		static Pattern pattern(final String v) {
+			if(v == null || v.isEmpty()) return null;
+			final var p1 = rewrite(v);
 			try {
 				// v = v.replace("{", "[{]").replace("(?P<", "(?<");
 				return Pattern.compile(p1);
 			} catch(final Throwable t) {
-				System.out.println(p1);
 				LOG.log(Level.WARNING, "pattern[   "+v+"    >  "+p1+"   ] "+t.getMessage());
-				System.exit(0);
-				return null;
+				throw new IllegalStateException("invalid pattern ["+v+"] => "+t.getMessage(), t);	// a hot reload must not take down the server
 			}
 		}
 
-		public record Allowlists(Pattern[] regexes, RegexTarget regexTarget, String description, Pattern[] paths, Condition condition, String[] stopwords) {
+		/** Allows a finding if its path, secret (or match or line, see {@code regexTarget}) or stopwords match, with condition AND all given kinds must match.
+		 * {@code stopwordMatcher} holds the stopwords as one automaton, null if one of them is not ASCII. */
+		public record Allowlists(Pattern[] regexes, RegexTarget regexTarget, String description, Pattern[] paths, Condition condition, String[] stopwords, AhoCorasick stopwordMatcher) implements Serializable {
 			@SuppressWarnings("unchecked")
 			public static Allowlists of(final Map<String,Object> m) {
 				if(m == null || m.isEmpty()) return null;
@@ -122,11 +140,79 @@ public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Ru
 						,             (null == paths       ? null : paths.stream  ().map(Rule::pattern).toList().toArray(new Pattern[paths  .size()]))
 						,             (null == condition   ? null : Condition.valueOf(condition))
 						,             (null == stopwords   ? null : stopwords.toArray(new String[stopwords.size()]))
+						,             matcher(stopwords)
 						);
 
 			}
 
+			private static AhoCorasick matcher(final List<String> stopwords) {
+				if(null == stopwords || stopwords.isEmpty() || !stopwords.stream().allMatch(AhoCorasick::supports)) return null;
+				final var any = new BitSet();
+				any.set(0);
+				return AhoCorasick.of(stopwords.stream().collect(Collectors.toMap(w->w.toLowerCase(Locale.ROOT), _->any, (a,_)->a)));
+			}
+
 			public static List<Allowlists> of(final List<Map<String,Object>> m) { return (m == null || m.isEmpty() ? null : m.stream().map(Allowlists::of).toList()); }
+
+			/** @return true if the path alone allows every finding in the file, with condition AND the content has to match as well */
+			public boolean excludes(final String path) {
+				if(null == paths || (condition == Condition.AND && (null != regexes || null != stopwords))) return false;
+				return find(paths, path);
+			}
+
+			/** @return true if the allowlist decides on the path together with the content, findings in the file then depend on its path */
+			public boolean pathConditional(final String path) {
+				return condition == Condition.AND && null != paths && (null != regexes || null != stopwords) && find(paths, path);
+			}
+
+			/** @return true if the finding of {@code content[start,end)} is allowed, {@code path} is null if unknown */
+			public boolean allows(final String path, final String secret, final CharSequence content, final int start, final int end) {
+				final var pathHit = null != paths && null != path && find(paths, path);
+				if(pathHit && condition != Condition.AND) return true;
+				final var regexHit = null != regexes && find(regexes, switch(regexTarget) {
+				case null  -> secret;
+				case match -> content.subSequence(start, end);
+				case line  -> line(content, start, end);
+				});
+				final var stopHit = null != stopwords && (null != stopwordMatcher ? stopwordMatcher.contains(secret) : Arrays.stream(stopwords).anyMatch(w->secret.toLowerCase(Locale.ROOT).contains(w.toLowerCase(Locale.ROOT))));
+				if(condition != Condition.AND) return regexHit || stopHit;
+				return (null == paths || pathHit) && (null == regexes || regexHit) && (null == stopwords || stopHit) && (null != paths || null != regexes || null != stopwords);
+			}
+
+			private static boolean find(final Pattern[] patterns, final CharSequence v) {
+				for(final var p : patterns) if(null != p && p.matcher(v).find()) return true;
+				return false;
+			}
+
+			private static CharSequence line(final CharSequence t, final int start, final int end) {
+				var from = start;
+				var to   = end;
+				while(from > 0          && t.charAt(from - 1) != '\n') from--;
+				while(to   < t.length() && t.charAt(to)       != '\n') to++;
+				return t.subSequence(from, to);
+			}
+		}
+
+		/** @return true if an allowlist of the rule excludes the file by its path */
+		public boolean excludes(final String path) {
+			if(null != allowlists) for(final var a : allowlists) if(null != a && a.excludes(path)) return true;
+			return false;
+		}
+
+		/** @return true if an allowlist of the rule allows the finding */
+		public boolean allows(final String path, final String secret, final CharSequence content, final int start, final int end) {
+			if(null != allowlists) for(final var a : allowlists) if(null != a && a.allows(path, secret, content, start, end)) return true;
+			return false;
+		}
+
+		/** @return true if the rule can match content of the file */
+		public boolean applies(final String path) { return (null == this.path || this.path.matcher(path).find()) && !excludes(path); }
+
+		Rule withAllowlists(final List<Allowlists> more) {
+			final var all = new ArrayList<Allowlists>();
+			if(null != allowlists) all.addAll(allowlists);
+			all.addAll(more);
+			return new Rule(id, description, regex, entropy, keywords, validationRegex, tags, examples, negativeExamples, assignmentContext, path, List.copyOf(all), secretGroup);
 		}
 
 		static final Function<String, Pattern> regexCompile = t-> { if(null==t) return null; try { return Rule.pattern(t); } catch(final Throwable x) { throw new IllegalStateException("invalid pattern ["+t+"] => "+x.getMessage()); } };
@@ -168,62 +254,271 @@ public record Ruleset(Map<String, Rule> ruleMap, Pattern pattern, Map<Integer,Ru
 
 	private static final double log2div = 1.d / Math.log(2);
 
-	public static double shannonEntropy(final String v) {
+	/** @return Shannon entropy in bits per char, counted in a primitive table for ASCII, over the sorted chars otherwise */
+	public static double shannonEntropy(final CharSequence v) {
 		if(v == null || v.isEmpty()) return 0;
-		final var charCount = new HashMap<Character,AtomicInteger>();
-		for(final var c : v.toCharArray()) charCount.computeIfAbsent(c, _->new AtomicInteger()).incrementAndGet();
-		final var invLength = 1.0D / v.length();
-		return charCount.values().stream().map(e->e.get() * invLength).reduce(0D, (entropy,freq)-> entropy - freq * Math.log(freq) * log2div);
-	}
-
-	public static Ruleset ofRules(final List<Rule> rules) {
-		MessageDigest MD5; try { MD5 = MessageDigest.getInstance("MD5"); } catch(final Throwable t) { throw new IllegalStateException(t); }
-		final Function<String,String> KEY = t -> "K"+HexFormat.of().formatHex(MD5.digest(t.getBytes()));
-		final var groupNameToRule = new HashMap<String,Rule>();
-		final var p = new StringBuilder();
-		rules.stream().filter(r->null!=r.regex).forEach(r->{
-			final var k = KEY.apply(r.id);
-			groupNameToRule.put(k, r);
-			p.append(p.isEmpty()?"":"|").append("(?<"+k+">"+r.regex+")");
-		});
-		final var pattern = Rule.pattern(p.toString());
-		final var namedGroups = pattern.namedGroups();
-		final var groupToRule = groupNameToRule.entrySet().stream().collect(Collectors.toMap(e->namedGroups.get(e.getKey()), Map.Entry::getValue));
-		final var ruleMap = rules.stream().filter(r->null!=r.regex).collect(Collectors.toMap(Rule::id, Function.identity()));
-		return new Ruleset(ruleMap, pattern, groupToRule);
-	}
-
-	public Map.Entry<String,Rule> findMatch(final String t) {
-		final var m = pattern.matcher(t);
-		var skipedEntropy = false;
-		if (m.find()) {
+		final var n      = v.length();
+		final var counts = new int[128];
+		for(var i = 0; i < n; i++) {
+			final var c = v.charAt(i);
+			if(c >= counts.length) return sortedEntropy(v);
+			counts[c]++;
+		}
+		final var invLength = 1.0D / n;
+		var entropy = 0D;
+		for(final var c : counts) if(c > 0) { final var freq = c * invLength; entropy -= freq * Math.log(freq); }
+		return entropy * log2div;
+	}
+
+	private static double sortedEntropy(final CharSequence v) {
+		final var chars = v.toString().toCharArray();
+		Arrays.sort(chars);
+		final var invLength = 1.0D / chars.length;
+		var entropy = 0D;
+		for(int i = 0, j; i < chars.length; i = j) {
+			for(j = i + 1; j < chars.length && chars[j] == chars[i]; j++) { }
+			final var freq = (j - i) * invLength;
+			entropy -= freq * Math.log(freq);
+		}
+		return entropy * log2div;
+	}
+
+	/** One finding, {@code start} and {@code end} are offsets of the match in the scanned content, {@code line} and {@code column} count from 1. */
+	public record Finding(Rule rule, String secret, int start, int end, int line, int column) { }
+
+	/** Receives the findings of a scan in content order. */
+	@FunctionalInterface public interface FindingSink {
+		/** @return false to stop the scan */
+		boolean accept(Finding finding);
+	}
+
+	/** One combined alternation of rule regexes, each rule wrapped in its own named group. */
+	public record Alternation(RegexEngine.Compiled regex, Map<Integer,Rule> groupToRule) {
+		static Alternation of(final Collection<Rule> rules, final RegexEngine engine) {
+			MessageDigest MD5; try { MD5 = MessageDigest.getInstance("MD5"); } catch(final Throwable t) { throw new IllegalStateException(t); }
+			final Function<String,String> KEY = t -> "K"+HexFormat.of().formatHex(MD5.digest(t.getBytes()));
+			final var groupNameToRule = new HashMap<String,Rule>();
+			final var p = new StringBuilder();
+			rules.forEach(r->{
+				final var k = KEY.apply(r.id);
+				groupNameToRule.put(k, r);
+				p.append(p.isEmpty()?"":"|").append("(?<"+k+">"+r.regex+")");
+			});
+			final var rewritten = Rule.rewrite(p.toString());
+			RegexEngine.Compiled regex;
+			try { regex = engine.compile(rewritten); } catch(final RuntimeException e) {
+				if(engine == RegexEngine.JDK) throw e;
+				LOG.log(Level.WARNING, "Alternation not supported by "+engine.getClass().getSimpleName()+", fallback to jdk => "+e.getMessage());
+				regex = RegexEngine.JDK.compile(rewritten);
+			}
+			final var namedGroups = regex.namedGroups();
+			final var groupToRule = groupNameToRule.entrySet().stream().collect(Collectors.toMap(e->namedGroups.get(e.getKey()), Map.Entry::getValue));
+			return new Alternation(regex, groupToRule);
+		}
+
+		/** Reports every match that passes entropy and allowlists, lines are counted incrementally up to each finding.
+		 * After a rejected match the search restarts one char after its start, so a match of an other rule inside the rejected span is still found.
+		 * @return false if the sink stopped the scan */
+		boolean scan(final CharSequence t, final String path, final List<Rule.Allowlists> global, final FindingSink sink) {
+			final var m  = regex.matcher(t);
 			final var gc = m.groupCount();
-			for(var i = 1; i < gc; i++) {
-				if(m.group(i) instanceof final String found) {
-					final var rule = groupToRule.get(i);
-					if(rule==null) continue;
-					String secret = null;
-					if(rule.secretGroup != null)           secret = m.group(i + rule.secretGroup.intValue());
-					else if(!groupToRule.containsKey(i+1)) secret = m.group(i + 1);
-					else                                   secret = found;
-					if(null != rule.entropy) {
-						final var entropy = shannonEntropy(secret);
-						if(entropy >= rule.entropy) return Map.entry(secret, rule);
-						LOG.log(Level.INFO, "Ignore ["+rule.id+"]["+secret+"] entropy "+entropy+" < "+rule.entropy);
-						skipedEntropy = true;
-						continue;
-					}
-					return Map.entry(secret, rule);
+			var line      = 1;
+			var lineStart = 0;
+			var counted   = 0;
+			var restart   = -1;	// start of the next search after a rejected match, -1 to continue after the last match
+			while(restart < 0 ? m.find() : restart <= t.length() && m.find(restart)) {
+				restart = -1;
+				for(var i = 1; i <= gc; i++) {
+					if(!(m.group(i) instanceof final String found) || !(groupToRule.get(i) instanceof final Rule rule)) continue;
+					final var metrics = ScanMetrics.rule(rule.id);
+					metrics.matches.increment();
+					var secret = null != rule.secretGroup ? m.group(i + rule.secretGroup.intValue()) : i < gc && !groupToRule.containsKey(i+1) ? m.group(i + 1) : found;
+					if(null == secret) secret = found;
+					if(null != rule.entropy && shannonEntropy(secret) < rule.entropy) { ScanMetrics.entropyRejected(rule); restart = m.start() + 1; break; }
+					if(rule.allows(path, secret, t, m.start(), m.end()) || allows(global, path, secret, t, m.start(), m.end())) { ScanMetrics.allowlisted(rule); restart = m.start() + 1; break; }
+					for(; counted < m.start(); counted++) if(t.charAt(counted) == '\n') { line++; lineStart = counted + 1; }
+					metrics.findings.increment();
+					if(!sink.accept(new Finding(rule, secret, m.start(), m.end(), line, m.start() - lineStart + 1))) return false;
+					break;
 				}
 			}
-			if(!skipedEntropy) LOG.log(Level.WARNING, "No rule for ["+m.group()+"] found");
+			return true;
+		}
+
+		private static boolean allows(final List<Rule.Allowlists> allowlists, final String path, final String secret, final CharSequence t, final int start, final int end) {
+			for(final var a : allowlists) if(a.allows(path, secret, t, start, end)) return true;
+			return false;
 		}
+	}
+
+	/** Upper bound of cached keyword specific alternations, further combinations are compiled per call. */
+	private static final int MAX_ALTERNATIONS = 4096;
+
+	public static Ruleset ofRules(final List<Rule> rules) { return ofRules(rules, List.of(), RegexEngine.DEFAULT); }
+
+	public static Ruleset ofConfig(final Config config) { return ofConfig(config, RegexEngine.DEFAULT); }
+
+	public static Ruleset ofConfig(final Config config, final RegexEngine engine) { return ofRules(config.rules(), config.allowlists(), engine); }
+
+	public static Ruleset ofRules(final List<Rule> rules, final List<Rule.Allowlists> allowlists, final RegexEngine engine) {
+		final var active     = rules.stream().filter(r->null!=r.regex).toList();
+		final var pathRules  = rules.stream().filter(r->null==r.regex && null!=r.path).toList();
+		final var byKeyword  = new HashMap<String,BitSet>();
+		final var unfiltered = new BitSet();
+		final var scoped     = new BitSet();
+		for(var i = 0; i < active.size(); i++) {
+			final var rule = active.get(i);
+			if(null != rule.path || (null != rule.allowlists && rule.allowlists.stream().anyMatch(a->null != a && null != a.paths()))) scoped.set(i);
+			final var keywords = rule.keywords;
+			if(keywords == null || keywords.isEmpty() || !keywords.stream().allMatch(AhoCorasick::supports)) { unfiltered.set(i); continue; }
+			for(final var k : keywords) byKeyword.computeIfAbsent(k.toLowerCase(Locale.ROOT), _->new BitSet()).set(i);
+		}
+		final var ruleMap = active.stream().collect(Collectors.toMap(Rule::id, Function.identity()));
+		return new Ruleset(ruleMap, active, pathRules, List.copyOf(allowlists), engine, Alternation.of(active, engine), AhoCorasick.of(byKeyword), unfiltered, scoped
+				, new ConcurrentHashMap<>(), fingerprint(rules, allowlists));
+	}
+
+	/** Version of the scan semantics, part of the fingerprint so cached verdicts of an older scanner are not reused. */
+	private static final int SCAN_VERSION = 2;
+
+	/** @return SHA-256 over everything of the rules and global allowlists that influences a scan result */
+	static String fingerprint(final List<Rule> rules, final List<Rule.Allowlists> allowlists) {
+		MessageDigest SHA; try { SHA = MessageDigest.getInstance("SHA-256"); } catch(final Throwable t) { throw new IllegalStateException(t); }
+		SHA.update(("scan "+SCAN_VERSION+"\n").getBytes(StandardCharsets.UTF_8));
+		final Function<Pattern[],String> P = a -> null == a ? null : Arrays.stream(a).map(e->null == e ? null : e.pattern()).toList().toString();
+		final Function<List<Rule.Allowlists>,String> A = l -> {
+			final var b = new StringBuilder();
+			if(null != l) for(final var a : l) if(null != a) b.append('\0').append(P.apply(a.regexes())).append(a.regexTarget()).append(P.apply(a.paths()))
+				.append(a.condition()).append(null == a.stopwords() ? null : Arrays.toString(a.stopwords()));
+			return b.toString();
+		};
+		for(final var r : rules) {
+			final var b = new StringBuilder().append(r.id).append('\0').append(r.regex).append('\0').append(r.entropy).append('\0').append(r.secretGroup)
+					.append('\0').append(r.keywords).append('\0').append(null == r.path ? null : r.path.pattern()).append(A.apply(r.allowlists));
+			SHA.update(b.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+		}
+		if(!allowlists.isEmpty()) SHA.update(("allowlists"+A.apply(allowlists)).getBytes(StandardCharsets.UTF_8));
+		return HexFormat.of().formatHex(SHA.digest());
+	}
+
+	/** @return secret with everything but a short prefix masked, safe for logs and files */
+	public static String redact(final String secret) {
+		if(secret == null) return null;
+		return secret.substring(0, Math.min(4, secret.length() / 4))+"*****";
+	}
+
+	public Map<Integer,Rule> groupToRule() { return all.groupToRule(); }
+
+	/** @return alternation of the given rules, cached per distinct combination */
+	Alternation alternation(final BitSet candidates) {
+		if(candidates.cardinality() == rules.size()) return all;
+		if(alternations.get(candidates) instanceof final Alternation a) return a;
+		final var a = Alternation.of(candidates.stream().mapToObj(rules::get).toList(), engine);
+		if(alternations.size() < MAX_ALTERNATIONS) alternations.putIfAbsent(candidates, a);
+		return a;
+	}
+
+	/** @return false if a global allowlist excludes the file, its content needs no scan */
+	public boolean scans(final String path) {
+		for(final var a : allowlists) if(a.excludes(path)) return false;
+		return true;
+	}
+
+	/** @return first path only rule matching the file, it fires without looking at the content */
+	public Rule pathMatch(final String path) {
+		for(final var r : pathRules) if(r.applies(path)) return r;
 		return null;
 	}
 
-	public static Ruleset ofListMap(final List<Map<String,Object>> rules) { return ofRules(rules.stream().map(Rule::of).filter(e->null!=e).toList()); }
+	/** @return the rules able to match content of the file, null if all rules are */
+	public BitSet applicable(final String path) {
+		BitSet applicable = null;
+		for(var i = scoped.nextSetBit(0); i >= 0; i = scoped.nextSetBit(i + 1)) {
+			if(rules.get(i).applies(path)) continue;
+			if(applicable == null) { applicable = new BitSet(rules.size()); applicable.set(0, rules.size()); }
+			applicable.clear(i);
+		}
+		return applicable;
+	}
+
+	/** @return true if an allowlist decides on the path together with the content, the findings then hold for this path only */
+	public boolean pathDependent(final String path) {
+		for(final var a : allowlists) if(a.pathConditional(path)) return true;
+		for(var i = scoped.nextSetBit(0); i >= 0; i = scoped.nextSetBit(i + 1)) {
+			final var list = rules.get(i).allowlists;
+			if(null != list) for(final var a : list) if(null != a && a.pathConditional(path)) return true;
+		}
+		return false;
+	}
+
+	public Map.Entry<String,Rule> findMatch(final CharSequence t) { return findMatch(t, null); }
+
+	/** @return first finding as (secret, rule) or null */
+	public Map.Entry<String,Rule> findMatch(final CharSequence t, final BitSet applicable) {
+		final var first = new Finding[1];
+		scan(t, null, applicable, f -> { first[0] = f; return false; });
+		return null == first[0] ? null : Map.entry(first[0].secret(), first[0].rule());
+	}
+
+	/** Reports every finding of the applicable rules (null for all) in one regex pass. The keyword prefilter selects the alternation,
+	 * {@code path} (null if unknown) is matched against allowlist paths that need the content as well.
+	 * @return false if the sink stopped the scan */
+	public boolean scan(final CharSequence t, final String path, final BitSet applicable, final FindingSink sink) {
+		final var candidates = keywords.match(t);
+		candidates.or(unfiltered);
+		if(null != applicable) candidates.and(applicable);
+		if(candidates.isEmpty()) return true;
+		final var start = System.nanoTime();
+		final boolean complete;
+		try { complete = alternation(candidates).scan(t, path, allowlists, sink); }
+		finally { ScanMetrics.regex(rules, candidates, t.length(), System.nanoTime() - start); }
+		if(ScanMetrics.sample()) timeAlone(t, candidates);
+		return complete;
+	}
 
+	/** Matches the content with every candidate rule on its own and records the time per rule, each run is cut off after {@link ScanMetrics#SAMPLE_LIMIT} or at the deadline of the blob. */
+	private void timeAlone(final CharSequence t, final BitSet candidates) {
+		final var content = t instanceof final DeadlineSequence d ? d.delegate() : t;
+		final var end     = t instanceof final DeadlineSequence d ? d.deadline() : GitBlitSecCheckReceiveHook.deadline(0);	// no budget, only the sample limit applies
+		for(var i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			final var start = System.nanoTime();
+			if(end - start <= 0) return;	// the budget of the blob is spent, the push must not wait for the samples
+			final var single = new BitSet();
+			single.set(i);
+			try {
+				final var m = alternation(single).regex().matcher(new DeadlineSequence(content, end - start < ScanMetrics.SAMPLE_LIMIT ? end : start + ScanMetrics.SAMPLE_LIMIT));
+				while(m.find()) { }
+			} catch(final DeadlineSequence.TimeoutException _) { }	// recorded with the time spent
+			ScanMetrics.rule(rules.get(i).id).alone.record(System.nanoTime() - start);
+		}
+	}
+
+	public static List<Rule> rulesOf(final List<Map<String,Object>> rules) { return rules.stream().map(Rule::of).filter(e->null!=e).toList(); }
+
+	/** @return parsed and validated rules of a gitleaks.toml */
+	public static List<Rule> rulesOf(final String toml) { return configOf(toml).rules(); }
+
+	/** @return parsed and validated rules and global allowlists of a gitleaks.toml.
+	 * Reads the single [allowlist] table and the [[allowlists]] array, entries of the array with targetRules are added to the allowlists of those rules. */
 	@SuppressWarnings("unchecked")
-	public static Ruleset of(final String toml) { return Ruleset.ofListMap((List<Map<String,Object>>)new Toml().read(toml).toMap().get("rules")); }
+	public static Config configOf(final String toml) {
+		final var map      = new Toml().read(toml).toMap();
+		final var global   = new ArrayList<Rule.Allowlists>();
+		final var targeted = new HashMap<String,List<Rule.Allowlists>>();
+		if(map.get("allowlist") instanceof final Map<?,?> m && Rule.Allowlists.of((Map<String,Object>)m) instanceof final Rule.Allowlists a) global.add(a);
+		if(map.get("allowlists") instanceof final List<?> l) for(final var m : (List<Map<String,Object>>)l) {
+			final var targets = (List<String>)m.remove("targetRules");
+			if(!(Rule.Allowlists.of(m) instanceof final Rule.Allowlists a)) continue;
+			if(null == targets) global.add(a);
+			else for(final var t : targets) targeted.computeIfAbsent(t, _->new ArrayList<>()).add(a);
+		}
+		var rules = rulesOf((List<Map<String,Object>>)map.get("rules"));
+		if(!targeted.isEmpty()) rules = rules.stream().map(r->targeted.get(r.id) instanceof final List<Rule.Allowlists> more ? r.withAllowlists(more) : r).toList();
+		return new Config(rules, List.copyOf(global));
+	}
+
+	public static Ruleset ofListMap(final List<Map<String,Object>> rules) { return ofRules(rulesOf(rules)); }
+
+	public static Ruleset of(final String toml) { return ofConfig(configOf(toml)); }
 
 }
\ No newline at end of file
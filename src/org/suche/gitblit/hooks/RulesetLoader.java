@@ -0,0 +1,157 @@
+package org.suche.gitblit.hooks;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Holds the active {@link Ruleset} and replaces it whenever etc/gitleaks.toml changes.
+ * A new ruleset is compiled on the watcher thread and published with one atomic swap, running pushes keep the instance they started with.
+ * The validated rules and global allowlists are stored in etc/gitleaks.snapshot together with the hash of their TOML, so restarts and reloads of an unchanged
+ * file skip the TOML parse and the per rule validation compile.
+ * With GitBlitSecCheck.rules and GitBlitSecCheck.snapshot pointing to one directory all instances of a host share the file and its snapshot,
+ * the first instance parses and validates, the others read the snapshot.
+ */
+public final class RulesetLoader {
+	private static final Logger LOG = Logger.getLogger(RulesetLoader.class.getCanonicalName());
+
+	static final         Path path         = Path.of(System.getProperty("GitBlitSecCheck.rules"   , "etc/gitleaks.toml"));
+	static final         Path snapshot     = Path.of(System.getProperty("GitBlitSecCheck.snapshot", "etc/gitleaks.snapshot"));
+	private static final URI  defaultRules = URI.create("https://raw.githubusercontent.com/gitleaks/gitleaks/refs/heads/master/config/gitleaks.toml");
+	private static final int  FORMAT       = 3;
+	private static final long SETTLE       = TimeUnit.MILLISECONDS.toNanos(500);	// quiet time after the last write of the rules
+	private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter("maxdepth=16;java.lang.*;java.util.*;java.util.regex.*;org.suche.gitblit.hooks.*;!*");
+
+	private static final AtomicReference<Ruleset> current = new AtomicReference<>();
+	private static final AtomicBoolean            started = new AtomicBoolean();
+	private static volatile String                tomlHash;
+	private static volatile WatchService          watcher;
+
+	private RulesetLoader() { }
+
+	/** @return the active ruleset or null while none is loaded */
+	public static Ruleset ruleset() { return current.get(); }
+
+	/** Loads the ruleset (downloads the default one if missing) and starts watching for changes, repeated calls are ignored. */
+	public static void start() {
+		if(!started.compareAndSet(false, true)) return;
+		if(Files.exists(path)) reload();
+		final var t = new Thread(RulesetLoader::watch, "Watch security rules");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static void stop() {
+		if(!started.compareAndSet(true, false)) return;
+		if(watcher instanceof final WatchService w) try { w.close(); } catch(final IOException _) { }
+	}
+
+	private static void watch() {
+		try {
+			if(!Files.exists(path)) download();
+			final var dir = path.toAbsolutePath().getParent();
+			try(final var ws = dir.getFileSystem().newWatchService()) {
+				watcher = ws;
+				if(!started.get()) return;
+				dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY);
+				for(;;) {
+					if(!concerns(ws.take())) continue;
+					for(var settled = System.nanoTime() + SETTLE; ; ) {	// wait until the writes to the rules settle, other files in the directory do not extend the wait
+						final var key = ws.poll(settled - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if(null == key) break;
+						if(concerns(key)) settled = System.nanoTime() + SETTLE;
+					}
+					reload();
+				}
+			}
+		} catch(final ClosedWatchServiceException | InterruptedException _) {
+		} catch(final Throwable t) { LOG.log(Level.SEVERE, "Watch "+path+" => "+t.getMessage(), t); }
+	}
+
+	/** @return the key has an event of the rules file, the key is reset */
+	private static boolean concerns(final WatchKey key) {
+		var rules = false;
+		for(final var e : key.pollEvents()) if(path.getFileName().equals(e.context())) rules = true;
+		key.reset();
+		return rules;
+	}
+
+	private static void download() {
+		try {
+			final var bytes = defaultRules.toURL().openStream().readAllBytes();
+			LOG.log(Level.INFO, "Download "+defaultRules);
+			final var tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");	// an other instance may download at the same time
+			Files.write(tmp, bytes);
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.log(Level.INFO, "Stored "+path);
+			reload();
+		} catch(final UnknownHostException t) { LOG.log(Level.SEVERE, "Fetch GitBlitSecCheckReceiveHook rules from "+defaultRules+" failed. => "+t.getMessage());
+		} catch(final Throwable            t) { LOG.log(Level.SEVERE, "Fetch GitBlitSecCheckReceiveHook rules => "+t.getMessage(), t);
+		}
+	}
+
+	/** Compiles the current file and swaps it in, on any error the previous ruleset stays active. */
+	static synchronized void reload() {
+		try {
+			final var toml = Files.readAllBytes(path);
+			final var hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(toml));
+			if(hash.equals(tomlHash)) return;
+			var config       = readSnapshot(hash);
+			final var cached = config != null;
+			if(!cached) {
+				config = Ruleset.configOf(new String(toml, StandardCharsets.UTF_8));
+				writeSnapshot(hash, config);
+			}
+			final var r = Ruleset.ofConfig(config);
+			current.set(r);
+			tomlHash = hash;
+			LOG.log(Level.INFO, "Activated "+r.rules().size()+" rules of "+(cached ? snapshot : path)+" fingerprint "+r.fingerprint());
+		} catch(final Throwable t) { LOG.log(Level.SEVERE, "Load "+path+" => "+t.getMessage()+", keep previous rules", t); }
+	}
+
+	private static Ruleset.Config readSnapshot(final String hash) {
+		if(!Files.exists(snapshot)) return null;
+		try(final var in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+			in.setObjectInputFilter(FILTER);
+			if(in.readInt() != FORMAT || !hash.equals(in.readUTF())) return null;
+			return (Ruleset.Config)in.readObject();
+		} catch(final Exception e) {
+			LOG.log(Level.INFO, "Ignore "+snapshot+" => "+e.getMessage());
+			return null;
+		}
+	}
+
+	private static void writeSnapshot(final String hash, final Ruleset.Config config) {
+		try {
+			final var tmp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), snapshot.getFileName().toString(), ".tmp");	// unique, instances may write at the same time
+			try(final var out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(FORMAT);
+				out.writeUTF(hash);
+				out.writeObject(new Ruleset.Config(new ArrayList<>(config.rules()), new ArrayList<>(config.allowlists())));
+			}
+			Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(final IOException e) { LOG.log(Level.WARNING, "Write "+snapshot+" => "+e.getMessage()); }
+	}
+}
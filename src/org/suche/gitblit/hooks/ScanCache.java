@@ -0,0 +1,151 @@
+package org.suche.gitblit.hooks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/** Scan verdicts per (blob {@link ObjectId}, {@link Ruleset#fingerprint()}, scan mode).
+ * Blobs are immutable, so a verdict stays valid as long as the ruleset does not change. The text of a document extracted by Tika differs from
+ * the raw blob scanned as text (which skips binary content), so both modes have their own verdicts.
+ * In memory LRU tier backed by an append only index file, one line per clean verdict or per finding:
+ * <pre>&lt;fingerprint prefix&gt;[:tika] &lt;object id&gt; C
+ *&lt;fingerprint prefix&gt;[:tika] &lt;object id&gt; F &lt;rule id&gt; &lt;line&gt; &lt;column&gt; &lt;redacted secret&gt;</pre>
+ * Lines of an other ruleset are ignored and dropped on the next compaction.
+ * Clean verdicts are also looked up in and written to the {@link SharedScanStore} of the host if one is configured.
+ */
+public final class ScanCache {
+	private static final Logger LOG = Logger.getLogger(ScanCache.class.getCanonicalName());
+	private static final int    FINGERPRINT_PREFIX = 16;
+	private static final String TIKA               = ":tika";
+
+	/** One finding of a blob, the secret is redacted (null if the rule matched the path), line and column count from 1. */
+	public record Finding(String ruleId, String secret, int line, int column) { }
+
+	/** Verdict of one blob, {@link #CLEAN} or its findings in content order. */
+	public record Verdict(List<Finding> findings) {
+		public static final Verdict CLEAN = new Verdict(List.of());
+		public boolean clean() { return findings.isEmpty(); }
+	}
+
+	private record Key(ObjectId objectId, String fingerprint) { }
+
+	private final Path             file;
+	private final int              capacity;
+	private final SharedScanStore  shared;	// null if verdicts are not shared
+	private final Map<Key,Verdict> lru;
+	private final Set<String>      loaded = new HashSet<>();
+	private       FileChannel      out;
+
+	public ScanCache(final Path file, final int capacity) { this(file, capacity, null); }
+
+	public ScanCache(final Path file, final int capacity, final SharedScanStore shared) {
+		this.file     = file;
+		this.capacity = Math.max(16, capacity);
+		this.shared   = shared;
+		this.lru      = new LinkedHashMap<>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(final Map.Entry<Key,Verdict> eldest) { return size() > ScanCache.this.capacity; }
+		};
+	}
+
+	private static String prefix(final Ruleset ruleset) { return ruleset.fingerprint().substring(0, FINGERPRINT_PREFIX); }
+
+	/** @return fingerprint of the ruleset in the {@link SharedScanStore}, the complement for Tika verdicts */
+	private static long shared(final String fp, final boolean tika) {
+		final var k = Long.parseUnsignedLong(fp, 16);
+		return tika ? ~k : k;
+	}
+
+	/** @param tika the blob is a document scanned with Tika, else as text
+	 * @return cached verdict or null if the blob has to be scanned */
+	public Verdict get(final Ruleset ruleset, final AnyObjectId objectId, final boolean tika) {
+		final var fp  = prefix(ruleset);
+		final var key = new Key(objectId.toObjectId(), tika ? fp+TIKA : fp);
+		Verdict v;
+		synchronized(this) {
+			if(loaded.add(fp)) load(fp);
+			v = lru.get(key);
+		}
+		if(v == null && null != shared && shared.clean(shared(fp, tika), objectId)) {
+			ScanMetrics.sharedHits.increment();
+			v = Verdict.CLEAN;
+			synchronized(this) { lru.put(key, v); }
+		}
+		return v;
+	}
+
+	public void put(final Ruleset ruleset, final AnyObjectId objectId, final boolean tika, final Verdict verdict) {
+		final var fp   = prefix(ruleset);
+		final var mode = tika ? fp+TIKA : fp;
+		final var id   = objectId.toObjectId();
+		if(verdict.clean() && null != shared) shared.putClean(shared(fp, tika), id);
+		final var line = new StringBuilder();
+		if(verdict.clean()) line.append(mode).append(' ').append(id.name()).append(" C\n");
+		for(final var f : verdict.findings()) line.append(mode).append(' ').append(id.name()).append(" F ").append(f.ruleId()).append(' ').append(f.line()).append(' ').append(f.column())
+			.append(null == f.secret() ? "" : " "+f.secret()).append('\n');
+		synchronized(this) {
+			if(null != lru.put(new Key(id, mode), verdict)) return;
+			try {
+				if(out == null) out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				out.write(ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8)));
+			} catch(final IOException e) { LOG.log(Level.WARNING, "Append "+file+" => "+e.getMessage()); }
+		}
+	}
+
+	/** Reads the verdicts of the ruleset in both modes into the LRU, rewrites the file if it is dominated by stale lines.
+	 * The file is streamed, only the last {@code capacity} lines to keep are held for the rewrite. */
+	private void load(final String fp) {
+		if(!Files.exists(file)) return;
+		try {
+			final var keep  = new ArrayDeque<String>();
+			var       kept  = 0;
+			var       lines = 0;
+			Key       block = null;	// key of the finding line just read, the lines of one verdict are adjacent, a verdict appended again after eviction replaces the earlier one
+			try(var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				for(var line = in.readLine(); line != null; line = in.readLine()) {
+					lines++;
+					final var prev = block;
+					block = null;
+					final var f = line.split(" ", 7);
+					if(f.length < 3 || !(fp.equals(f[0]) || f[0].equals(fp+TIKA)) || !ObjectId.isId(f[1])) continue;
+					final var key = new Key(ObjectId.fromString(f[1]), f[0]);
+					if("C".equals(f[2])) lru.put(key, Verdict.CLEAN);
+					else if("F".equals(f[2]) && f.length >= 6) {
+						final Finding finding;
+						try { finding = new Finding(f[3], f.length == 7 ? f[6] : null, Integer.parseInt(f[4]), Integer.parseInt(f[5])); } catch(final NumberFormatException _) { continue; }
+						final var known = key.equals(prev) ? lru.get(key) : null;
+						lru.put(key, new Verdict(null == known ? List.of(finding) : Stream.concat(known.findings().stream(), Stream.of(finding)).toList()));
+						block = key;
+					} else continue;
+					if(keep.size() == capacity) keep.removeFirst();
+					keep.addLast(line);
+					kept++;
+				}
+			}
+			LOG.log(Level.INFO, "Loaded "+kept+" of "+lines+" scan verdicts from "+file);
+			if(lines > 2 * capacity || kept * 2 < lines) {
+				if(out != null) { out.close(); out = null; }
+				final var tmp = file.resolveSibling(file.getFileName()+".tmp");
+				Files.write(tmp, keep, StandardCharsets.UTF_8);
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch(final IOException e) { LOG.log(Level.WARNING, "Load "+file+" => "+e.getMessage()); }
+	}
+}
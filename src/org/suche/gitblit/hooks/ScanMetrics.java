@@ -0,0 +1,248 @@
+package org.suche.gitblit.hooks;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.suche.gitblit.hooks.Ruleset.Rule;
+
+/** Counters and latency histograms of pushes, blobs and rules, published as MBeans under {@value #DOMAIN} while the plugin runs.
+ * Recording only adds to {@link LongAdder}s, histograms count durations in log2 buckets, so it can stay enabled in production.
+ * The combined alternation scans several rules at once, a rule is charged the scan time divided by the number of rules it ran with (Regex), which tells
+ * how often it runs but not what it costs. With GitBlitSecCheck.ruleSampling=n one in n alternation scans is repeated with every candidate rule on its own
+ * (SampledRegex), the mean of that times Activations estimates the cost of the rule.
+ */
+public final class ScanMetrics {
+	private static final Logger LOG          = Logger.getLogger(ScanMetrics.class.getCanonicalName());
+	static final         String DOMAIN       = "org.suche.gitblit.hooks";
+	static final         long   SAMPLE_LIMIT = 1_000_000_000;	// nanos per rule and sample
+	private static final int    sampling     = Integer.getInteger("GitBlitSecCheck.ruleSampling", 0);	// 0 never
+
+	/** Durations in nanoseconds, bucket b counts the values in [2^b, 2^(b+1)). */
+	static final class Histogram {
+		private final LongAdder       count   = new LongAdder();
+		private final LongAdder       sum     = new LongAdder();
+		private final LongAccumulator max     = new LongAccumulator(Math::max, 0);
+		private final LongAdder[]     buckets = new LongAdder[63];
+
+		Histogram() { Arrays.setAll(buckets, _->new LongAdder()); }
+
+		void record(final long nanos) {
+			final var v = Math.max(0, nanos);
+			count  .increment();
+			sum    .add(v);
+			max    .accumulate(v);
+			buckets[63 - Long.numberOfLeadingZeros(v | 1)].increment();
+		}
+
+		long count() { return count.sum(); }
+		long mean () { final var n = count.sum(); return n == 0 ? 0 : sum.sum() / n; }
+		long max  () { return max.get(); }
+
+		/** @return upper bound of the bucket holding the quantile, at most the maximum */
+		long quantile(final double q) {
+			final var rank = (long)Math.ceil(q * count.sum());
+			var seen = 0L;
+			for(var b = 0; b < buckets.length; b++) if((seen += buckets[b].sum()) >= rank && seen > 0) return Math.min(max.get(), b >= 62 ? Long.MAX_VALUE : (2L << b) - 1);
+			return max.get();
+		}
+
+		void reset() { count.reset(); sum.reset(); max.reset(); for(final var b : buckets) b.reset(); }
+
+		/** Adds Count, MeanMicros, P50Micros, P99Micros and MaxMicros of the histogram to the attributes. */
+		void publish(final String name, final Map<String,LongSupplier> attributes) {
+			attributes.put(name+"Count"     , this::count);
+			attributes.put(name+"MeanMicros", () -> mean() / 1000);
+			attributes.put(name+"P50Micros" , () -> quantile(0.50) / 1000);
+			attributes.put(name+"P99Micros" , () -> quantile(0.99) / 1000);
+			attributes.put(name+"MaxMicros" , () -> max() / 1000);
+		}
+	}
+
+	/** Work attributed to one rule id, kept across ruleset reloads. */
+	static final class RuleMetrics {
+		final LongAdder activations       = new LongAdder();	// scans the keyword prefilter selected the rule for
+		final LongAdder activeBytes       = new LongAdder();
+		final LongAdder matches           = new LongAdder();
+		final LongAdder entropyRejections = new LongAdder();
+		final LongAdder allowlisted       = new LongAdder();
+		final LongAdder findings          = new LongAdder();
+		final Histogram regex             = new Histogram();	// share of the alternation time
+		final Histogram alone             = new Histogram();	// sampled time of the rule matched on its own
+
+		Map<String,LongSupplier> attributes() {
+			final var a = new LinkedHashMap<String,LongSupplier>();
+			a.put("Activations"      , activations::sum);
+			a.put("ActiveBytes"      , activeBytes::sum);
+			a.put("Matches"          , matches::sum);
+			a.put("EntropyRejections", entropyRejections::sum);
+			a.put("Allowlisted"      , allowlisted::sum);
+			a.put("Findings"         , findings::sum);
+			regex.publish("Regex", a);
+			alone.publish("SampledRegex", a);
+			return a;
+		}
+
+		void reset() { activations.reset(); activeBytes.reset(); matches.reset(); entropyRejections.reset(); allowlisted.reset(); findings.reset(); regex.reset(); alone.reset(); }
+	}
+
+	static final Histogram push              = new Histogram();
+	static final Histogram blob              = new Histogram();
+	static final Histogram regex             = new Histogram();
+	static final Histogram tika              = new Histogram();
+	static final LongAdder pushes            = new LongAdder();
+	static final LongAdder rejectedPushes    = new LongAdder();
+	static final LongAdder blobs             = new LongAdder();
+	static final LongAdder bytes             = new LongAdder();
+	static final LongAdder ignored           = new LongAdder();
+	static final LongAdder oversized         = new LongAdder();
+	static final LongAdder cacheHits         = new LongAdder();
+	static final LongAdder cacheMisses       = new LongAdder();
+	static final LongAdder sharedHits        = new LongAdder();	// cache hits answered by the shared store of the host
+	static final LongAdder entropyRejections = new LongAdder();
+	static final LongAdder allowlisted       = new LongAdder();
+	static final LongAdder timeouts          = new LongAdder();
+	static final LongAdder deferred          = new LongAdder();	// blobs left to the scan queue by the push budget
+	static final LongAdder flaggedRefs       = new LongAdder();
+
+	private static final Map<String,RuleMetrics> rules      = new ConcurrentHashMap<>();
+	private static final List<ObjectName>        registered = new ArrayList<>();
+	private static volatile boolean              published;
+
+	private ScanMetrics() { }
+
+	static RuleMetrics rule(final String id) {
+		if(rules.get(id) instanceof final RuleMetrics m) return m;
+		return rules.computeIfAbsent(id, k -> {
+			final var m = new RuleMetrics();
+			if(published) register(name("RuleMetrics", k), m.attributes(), m::reset);
+			return m;
+		});
+	}
+
+	/** Records one alternation scan of {@code length} chars over the candidate rules. */
+	static void regex(final List<Rule> all, final BitSet candidates, final int length, final long nanos) {
+		regex.record(nanos);
+		final var share = nanos / Math.max(1, candidates.cardinality());
+		for(var i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			final var m = rule(all.get(i).id());
+			m.activations.increment();
+			m.activeBytes.add(length);
+			m.regex.record(share);
+		}
+	}
+
+	/** @return true if the candidate rules of this alternation scan are to be timed one by one */
+	static boolean sample() { return sampling > 0 && ThreadLocalRandom.current().nextInt(sampling) == 0; }
+
+	static void entropyRejected(final Rule rule) { entropyRejections.increment(); rule(rule.id()).entropyRejections.increment(); }
+	static void allowlisted    (final Rule rule) { allowlisted      .increment(); rule(rule.id()).allowlisted      .increment(); }
+
+	private static Map<String,LongSupplier> attributes() {
+		final var a = new LinkedHashMap<String,LongSupplier>();
+		a.put("Pushes"           , pushes::sum);
+		a.put("RejectedPushes"   , rejectedPushes::sum);
+		a.put("Blobs"            , blobs::sum);
+		a.put("BytesScanned"     , bytes::sum);
+		a.put("IgnoredBlobs"     , ignored::sum);
+		a.put("OversizedBlobs"   , oversized::sum);
+		a.put("CacheHits"        , cacheHits::sum);
+		a.put("CacheMisses"      , cacheMisses::sum);
+		a.put("SharedCacheHits"  , sharedHits::sum);
+		a.put("EntropyRejections", entropyRejections::sum);
+		a.put("Allowlisted"      , allowlisted::sum);
+		a.put("Timeouts"         , timeouts::sum);
+		a.put("DeferredBlobs"    , deferred::sum);
+		a.put("FlaggedRefs"      , flaggedRefs::sum);
+		push .publish("Push" , a);
+		blob .publish("Blob" , a);
+		regex.publish("Regex", a);
+		tika .publish("Tika" , a);
+		return a;
+	}
+
+	private static void reset() {
+		for(final var h : List.of(push, blob, regex, tika)) h.reset();
+		for(final var c : List.of(pushes, rejectedPushes, blobs, bytes, ignored, oversized, cacheHits, cacheMisses, sharedHits, entropyRejections, allowlisted, timeouts, deferred, flaggedRefs)) c.reset();
+	}
+
+	/** Registers the MBeans of the totals and of every rule seen so far, rules seen later register themselves. */
+	public static synchronized void register() {
+		if(published) return;
+		published = true;
+		register(name("ScanMetrics", null), attributes(), ScanMetrics::reset);
+		rules.forEach((id, m) -> register(name("RuleMetrics", id), m.attributes(), m::reset));
+	}
+
+	public static synchronized void unregister() {
+		published = false;
+		final var server = ManagementFactory.getPlatformMBeanServer();
+		for(final var n : registered) try { server.unregisterMBean(n); } catch(final Exception e) { LOG.log(Level.FINE, "Unregister "+n+" => "+e.getMessage()); }
+		registered.clear();
+	}
+
+	private static ObjectName name(final String type, final String rule) {
+		try {
+			return new ObjectName(DOMAIN+":type="+type+(null == rule ? "" : ",rule="+ObjectName.quote(rule)));
+		} catch(final Exception e) { throw new IllegalStateException(e); }
+	}
+
+	private static synchronized void register(final ObjectName name, final Map<String,LongSupplier> attributes, final Runnable reset) {
+		try {
+			final var server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(name)) server.unregisterMBean(name);	// left over of a plugin instance that was not stopped
+			server.registerMBean(new Bean(attributes, reset), name);
+			registered.add(name);
+		} catch(final Exception e) { LOG.log(Level.WARNING, "Register "+name+" => "+e.getMessage()); }
+	}
+
+	/** Read only long attributes and a reset operation. */
+	private record Bean(Map<String,LongSupplier> attributes, Runnable reset) implements DynamicMBean {
+		@Override public Object getAttribute(final String name) throws AttributeNotFoundException {
+			if(!(attributes.get(name) instanceof final LongSupplier s)) throw new AttributeNotFoundException(name);
+			return s.getAsLong();
+		}
+
+		@Override public AttributeList getAttributes(final String[] names) {
+			final var list = new AttributeList();
+			for(final var n : names) if(attributes.get(n) instanceof final LongSupplier s) list.add(new Attribute(n, s.getAsLong()));
+			return list;
+		}
+
+		@Override public void          setAttribute (final Attribute attribute)    throws AttributeNotFoundException { throw new AttributeNotFoundException(attribute.getName()+" is read only"); }
+		@Override public AttributeList setAttributes(final AttributeList attributes) { return new AttributeList(); }
+
+		@Override public Object invoke(final String action, final Object[] params, final String[] signature) throws ReflectionException {
+			if(!"reset".equals(action)) throw new ReflectionException(new NoSuchMethodException(action));
+			reset.run();
+			return null;
+		}
+
+		@Override public MBeanInfo getMBeanInfo() {
+			final var attrs = attributes.keySet().stream().map(n -> new MBeanAttributeInfo(n, "long", n, true, false, false)).toArray(MBeanAttributeInfo[]::new);
+			final var reset = new MBeanOperationInfo("reset", "Clears the counters and histograms", null, "void", MBeanOperationInfo.ACTION);
+			return new MBeanInfo(Bean.class.getName(), "GitBlitSecCheck scan metrics", attrs, null, new MBeanOperationInfo[] { reset }, null);
+		}
+	}
+}
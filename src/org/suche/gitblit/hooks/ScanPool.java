@@ -0,0 +1,77 @@
+package org.suche.gitblit.hooks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Shared executor for blob scans of all concurrent pushes.
+ * The number of running scans is limited by {@code slots}, the bytes of blob content held in memory by {@code memory} (in KiB).
+ */
+public final class ScanPool {
+	private static final Logger LOG = Logger.getLogger(ScanPool.class.getCanonicalName());
+
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Semaphore       slots;
+	private final Semaphore       memory;
+	private final int             memoryKiB;
+
+	public ScanPool(final int parallel, final long maxInFlightBytes) {
+		this.slots     = new Semaphore(Math.max(1, parallel));
+		this.memoryKiB = Math.clamp(maxInFlightBytes >> 10, 1, Integer.MAX_VALUE);
+		this.memory    = new Semaphore(memoryKiB, true);
+	}
+
+	/** Released share of the in flight byte budget. */
+	public record Reservation(Semaphore memory, int permits) implements AutoCloseable {
+		@Override public void close() { memory.release(permits); }
+	}
+
+	/** Blocks until {@code bytes} (capped to the whole budget) may be held in memory. */
+	public Reservation reserve(final long bytes) throws InterruptedException {
+		final var permits = Math.clamp((bytes + 1023) >> 10, 1, memoryKiB);
+		memory.acquire(permits);
+		return new Reservation(memory, permits);
+	}
+
+	private <T> T run(final Callable<T> task, final AtomicBoolean stop) throws Exception {
+		slots.acquire();
+		try { return stop.get() ? null : task.call(); } finally { slots.release(); }
+	}
+
+	/** Runs all tasks concurrently.
+	 * @param failFast cancel all outstanding tasks after the first non null result
+	 * @return the non null results in the order of the tasks */
+	public <T> List<T> invokeAll(final List<Callable<T>> tasks, final boolean failFast) throws InterruptedException {
+		final var futures = new AtomicReferenceArray<Future<T>>(tasks.size());
+		final var stop    = new AtomicBoolean();
+		for(var i = 0; i < tasks.size(); i++) {
+			final var idx  = i;
+			final var task = tasks.get(i);
+			futures.set(i, executor.submit(() -> {
+				final var result = run(task, stop);
+				if(failFast && result != null && stop.compareAndSet(false, true))
+					for(var j = 0; j < futures.length(); j++) if(j != idx && futures.get(j) instanceof final Future<T> f) f.cancel(false); // no interrupt, an interrupted pack read would invalidate the pack file
+				return result;
+			}));
+		}
+		final var results = new ArrayList<T>();
+		for(var i = 0; i < tasks.size(); i++) {
+			try {
+				final var r = futures.get(i).get();
+				if(r != null) results.add(r);
+			} catch(final CancellationException _) {
+			} catch(final ExecutionException e) { LOG.log(Level.SEVERE, "scan failed => "+e.getCause().getMessage(), e.getCause()); }
+		}
+		return results;
+	}
+}
@@ -0,0 +1,265 @@
+package org.suche.gitblit.hooks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceiveCommand.Result;
+import org.suche.gitblit.hooks.GitBlitSecCheckReceiveHook.Rejection;
+import org.suche.gitblit.hooks.GitBlitSecCheckReceiveHook.Target;
+
+import com.gitblit.git.GitblitReceivePack;
+import com.gitblit.manager.INotificationManager;
+import com.gitblit.manager.IRepositoryManager;
+import com.gitblit.servlet.GitblitContext;
+
+/** Durable queue of the blobs the pre-receive hook left unscanned when its budget ran out, scanned by one background thread after the push.
+ * Every push is one file in etc/gitleaks.queue:
+ * <pre>repository &lt;name&gt;
+ *user &lt;email or -&gt; &lt;display name&gt;
+ *ref &lt;old id&gt; &lt;new id&gt; &lt;ref name&gt;
+ *blob &lt;object id&gt; &lt;commit id or -&gt; &lt;base id or -&gt; &lt;path&gt;</pre>
+ * The pre-receive hook writes it as .pending before the push is accepted, the post-receive hook keeps the refs that were updated and renames it to .push.
+ * A .pending file left by a crash is scanned with all its refs on the next start, so no deferred blob goes unscanned.
+ * A push whose scan fails is retried after the other queued pushes, after {@value #maxAttempts} failed attempts it is moved aside as .failed.
+ * A finding points refs/seccheck/flagged/&lt;ref&gt; at the pushed commit and mails the pusher. With GitBlitSecCheck.quarantine the commit is kept
+ * under refs/quarantine/&lt;ref&gt;/&lt;commit&gt; and the ref is set back to its old id, unless it moved on since the push.
+ */
+public final class ScanQueue {
+	private static final Logger  LOG        = Logger.getLogger(ScanQueue.class.getCanonicalName());
+	static final         Path    dir        = Path.of("etc/gitleaks.queue");
+	static final         String  FLAGGED    = "refs/seccheck/flagged/";
+	static final         String  QUARANTINE = "refs/quarantine/";
+	private static final boolean quarantine = Boolean.getBoolean("GitBlitSecCheck.quarantine");
+	private static final long    retryMillis = 60_000;
+	private static final int     maxAttempts = 5;
+
+	private static final Map<GitblitReceivePack, Path> pending = Collections.synchronizedMap(new WeakHashMap<>());	// written by onPreReceive, not yet accepted
+	private static final AtomicBoolean                 started = new AtomicBoolean();
+	private static final AtomicBoolean                 wake    = new AtomicBoolean();	// a push was queued since the worker last looked
+	private static final AtomicInteger                 seq     = new AtomicInteger();
+	private static final Object                        signal  = new Object();
+
+	private ScanQueue() { }
+
+	/** Starts the background scans, repeated calls are ignored. */
+	public static void start() {
+		if(!started.compareAndSet(false, true)) return;
+		final var t = new Thread(ScanQueue::work, "Deferred secret scans");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Stops after the current push, without interrupting a pack read. */
+	public static void stop() {
+		if(!started.compareAndSet(true, false)) return;
+		synchronized(signal) { signal.notifyAll(); }
+	}
+
+	/** Stores the deferred blobs of a push, the refs are taken from the commands that pass the post-receive hook.
+	 * @throws IOException if the file can not be written, the push must then be rejected */
+	static void defer(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands, final List<Target> blobs) throws IOException {
+		final var user = receivePack.getUserModel();
+		final var mail = null == user || null == user.emailAddress || user.emailAddress.isBlank() ? "-" : user.emailAddress.strip();
+		final var sb   = new StringBuilder();
+		sb.append("repository ").append(receivePack.getRepositoryModel().name).append('\n');
+		sb.append("user ").append(mail).append(' ').append(null == user ? "" : Objects.requireNonNullElse(user.displayName, user.username)).append('\n');
+		for(final var c : commands) sb.append("ref ").append(c.getOldId().name()).append(' ').append(c.getNewId().name()).append(' ').append(c.getRefName()).append('\n');
+		for(final var t : blobs   ) sb.append("blob ").append(t.objectId().name()).append(' ').append(null == t.commit() ? "-" : t.commit().name())
+			.append(' ').append(null == t.base() ? "-" : t.base().name()).append(' ').append(t.path()).append('\n');
+		Files.createDirectories(dir);
+		final var file = dir.resolve(String.format("%013d-%04d.pending", System.currentTimeMillis(), seq.incrementAndGet() % 10_000));
+		pending.put(receivePack, file);	// before the file exists, the start up recovery must not take it
+		try { write(file, sb.toString()); } catch(final IOException e) { pending.remove(receivePack); throw e; }
+	}
+
+	/** Keeps the refs of the push that were updated and hands it to the background scan. */
+	static void accepted(final GitblitReceivePack receivePack, final Collection<ReceiveCommand> commands) {
+		if(!(pending.get(receivePack) instanceof final Path file)) return;
+		try {
+			final var updated = new HashSet<String>();
+			for(final var c : commands) if(c.getResult() == Result.OK) updated.add(c.getRefName());
+			final var keep = Files.readAllLines(file, StandardCharsets.UTF_8).stream().filter(l -> !l.startsWith("ref ") || updated.contains(l.split(" ", 4)[3])).toList();
+			if(keep.stream().anyMatch(l -> l.startsWith("ref "))) write(ready(file), String.join("\n", keep)+"\n");
+			Files.delete(file);
+		} catch(final IOException e) { LOG.log(Level.WARNING, "Queue "+file+" => "+e.getMessage()+", scanned on the next start");
+		} finally { pending.remove(receivePack); }
+		wake.set(true);
+		synchronized(signal) { signal.notifyAll(); }
+	}
+
+	private static Path ready(final Path pendingFile) { return pendingFile.resolveSibling(pendingFile.getFileName().toString().replace(".pending", ".push")); }
+
+	/** Writes the file under a temporary name, forces it to disk and renames it. */
+	private static void write(final Path file, final String content) throws IOException {
+		final var tmp = file.resolveSibling(file.getFileName()+".tmp");
+		try(final var ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ch.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+			ch.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void work() {
+		try {
+			Files.createDirectories(dir);
+			try(final var files = Files.list(dir)) {	// left by a crash between pre and post receive, the refs may or may not have been updated
+				for(final var f : files.filter(f -> f.toString().endsWith(".pending") && !pending.containsValue(f)).toList()) Files.move(f, ready(f), StandardCopyOption.ATOMIC_MOVE);
+			}
+			final var failures = new HashMap<Path, Integer>();	// failed attempts of the queued pushes
+			var       failed   = false;	// the last attempt failed, a push that failed before waits
+			while(started.get()) {
+				wake.set(false);
+				final Path next;
+				try(final var files = Files.list(dir)) {
+					next = files.filter(f -> f.toString().endsWith(".push")).min(Comparator.comparing((final Path f) -> failures.getOrDefault(f, 0)).thenComparing(Comparator.naturalOrder())).orElse(null);
+				}
+				final var ruleset      = RulesetLoader.ruleset();
+				final var repositories = GitblitContext.getManager(IRepositoryManager.class);
+				if(null != next && null != ruleset && null != repositories && !(failed && failures.containsKey(next))) {
+					try {
+						process(next, ruleset, repositories);
+						failures.remove(next);
+						failed = false;
+					} catch(final InterruptedException e) { throw e;
+					} catch(final Exception e) {
+						failed = true;
+						final var n = failures.merge(next, 1, Integer::sum);
+						if(n < maxAttempts) LOG.log(Level.SEVERE, "Deferred scan "+next+" => "+e.getMessage()+", attempt "+n+" of "+maxAttempts, e);
+						else {
+							LOG.log(Level.SEVERE, "Deferred scan "+next+" => "+e.getMessage()+", failed "+n+" times, moved aside, its blobs are not scanned", e);
+							failures.remove(next);
+							Files.move(next, next.resolveSibling(next.getFileName()+".failed"), StandardCopyOption.REPLACE_EXISTING);
+						}
+					}
+					continue;
+				}
+				if(null != next && (null == ruleset || null == repositories)) LOG.log(Level.WARNING, "Deferred scans wait for "+(null == ruleset ? "the ruleset" : "Gitblit"));
+				failed = false;
+				synchronized(signal) { if(started.get() && !wake.get()) signal.wait(retryMillis); }
+			}
+		} catch(final InterruptedException _) {
+		} catch(final Throwable t) { LOG.log(Level.SEVERE, "Deferred scans stopped => "+t.getMessage(), t); started.set(false); }
+	}
+
+	/** Scans the blobs of one push, flags the refs carrying a finding and removes the file. */
+	private static void process(final Path file, final Ruleset ruleset, final IRepositoryManager repositories) throws IOException, InterruptedException {
+		String name = null, mail = null, user = "";
+		final var refs  = new ArrayList<ReceiveCommand>();
+		final var blobs = new ArrayList<String[]>();
+		try {
+			for(final var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				final var f = line.split(" ", line.startsWith("blob ") ? 5 : line.startsWith("ref ") ? 4 : 3);
+				switch(f[0]) {
+				case "repository" -> name = line.substring(f[0].length() + 1);
+				case "user"       -> { mail = "-".equals(f[1]) ? null : f[1]; user = f.length > 2 ? f[2] : ""; }
+				case "ref"        -> refs.add(new ReceiveCommand(ObjectId.fromString(f[1]), ObjectId.fromString(f[2]), f[3]));
+				case "blob"       -> { ObjectId.fromString(f[1]); blobs.add(f); }
+				default           -> { }
+				}
+			}
+		} catch(final RuntimeException e) {	// would block the queue on every retry
+			LOG.log(Level.SEVERE, "Deferred scan "+file+" is unreadable => "+e+", moved aside");
+			Files.move(file, file.resolveSibling(file.getFileName()+".failed"), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		try(final var repository = null == name ? null : repositories.getRepository(name)) {
+			if(null == repository) LOG.log(Level.WARNING, "Deferred scan "+file+" repository "+name+" is gone, dropped");
+			else try(final var rw = new RevWalk(repository)) {
+				final var targets = new ArrayList<Target>();
+				for(final var b : blobs) {
+					try {
+						final var commit = "-".equals(b[2]) ? null : rw.parseCommit(ObjectId.fromString(b[2]));
+						targets.add(new Target(ObjectId.fromString(b[1]), b[4], commit, "-".equals(b[3]) ? null : ObjectId.fromString(b[3])));
+					} catch(final MissingObjectException _) { }	// commit of a push that was not applied and got pruned
+				}
+				final var start      = System.nanoTime();
+				final var rejections = GitBlitSecCheckReceiveHook.scanAll(repository, ruleset, targets, false, 0, null);	// every ref needs its findings
+				LOG.log(Level.INFO, "Deferred scan of "+targets.size()+" blobs pushed to "+name+" found "+rejections.size()+" in "+(System.nanoTime() - start) / 1_000_000+" ms");
+				if(!rejections.isEmpty()) flag(repository, rw, name, mail, user, refs, rejections);
+			}
+		}
+		Files.delete(file);
+	}
+
+	private static void flag(final Repository repository, final RevWalk rw, final String name, final String mail, final String user, final List<ReceiveCommand> refs
+			, final List<Rejection> rejections) throws IOException {
+		for(final var cmd : refs) {
+			final RevCommit tip;
+			try { tip = rw.parseCommit(cmd.getNewId()); } catch(final MissingObjectException _) { continue; }
+			final var messages = new ArrayList<String>();
+			for(final var r : rejections) if(null == r.target().commit() || rw.isMergedInto(rw.parseCommit(r.target().commit()), tip)) messages.add(r.message());
+			if(messages.isEmpty()) continue;
+			final var ref     = cmd.getRefName().startsWith(Constants.R_REFS) ? cmd.getRefName().substring(Constants.R_REFS.length()) : cmd.getRefName();
+			final var actions = new ArrayList<String>();
+			actions.add("Flagged as "+FLAGGED+ref+" => "+point(repository, FLAGGED+ref, tip));
+			if(quarantine) {
+				final var kept = QUARANTINE+ref+"/"+tip.name();
+				actions.add("Kept as "+kept+" => "+point(repository, kept, tip));
+				final var rewound = rewind(repository, cmd);
+				actions.add(switch(rewound) {
+				case FORCED, FAST_FORWARD, NEW, NO_CHANGE -> "Set "+cmd.getRefName()+" back to "+(ObjectId.zeroId().equals(cmd.getOldId()) ? "deleted" : cmd.getOldId().name());
+				default -> "Left "+cmd.getRefName()+" alone, it moved on since the push => "+rewound;
+				});
+			}
+			ScanMetrics.flaggedRefs.increment();
+			LOG.log(Level.SEVERE, "Possible secrets in "+name+" "+cmd.getRefName()+" pushed by "+user+"\n"+String.join("\n", messages)+"\n"+String.join("\n", actions));
+			notify(mail, user, name, cmd.getRefName(), messages, actions);
+		}
+	}
+
+	private static RefUpdate.Result point(final Repository repository, final String ref, final ObjectId id) throws IOException {
+		final var ru = repository.updateRef(ref);
+		ru.setNewObjectId(id);
+		ru.setForceUpdate(true);
+		ru.setRefLogMessage("seccheck: possible secret", false);
+		return ru.update();
+	}
+
+	/** Compare and set of the ref from the pushed id back to the old one. */
+	private static RefUpdate.Result rewind(final Repository repository, final ReceiveCommand cmd) throws IOException {
+		final var ru = repository.updateRef(cmd.getRefName());
+		ru.setExpectedOldObjectId(cmd.getNewId());
+		ru.setForceUpdate(true);
+		ru.setRefLogMessage("seccheck: quarantine "+cmd.getNewId().name(), false);
+		if(ObjectId.zeroId().equals(cmd.getOldId())) return ru.delete();
+		ru.setNewObjectId(cmd.getOldId());
+		return ru.update();
+	}
+
+	private static void notify(final String mail, final String user, final String repository, final String ref, final List<String> messages, final List<String> actions) {
+		if(null == mail) return;
+		try {
+			if(GitblitContext.getManager(INotificationManager.class) instanceof final INotificationManager n)
+				n.sendMail("Possible secrets pushed to "+repository+" "+ref, "Hello "+user+",\n\nthe scan after your push to "+repository+" "+ref+" found\n"
+						+ String.join("\n", messages)+"\n\n"+String.join("\n", actions)+"\n", List.of(mail));
+		} catch(final Exception e) { LOG.log(Level.WARNING, "Mail to "+mail+" => "+e.getMessage()); }
+	}
+}
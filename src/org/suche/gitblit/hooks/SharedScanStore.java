@@ -0,0 +1,137 @@
+package org.suche.gitblit.hooks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+
+/** Clean scan verdicts shared by all Gitblit instances of a host through one memory mapped file, the tier below the {@link ScanCache} of each instance.
+ * Enabled with GitBlitSecCheck.sharedStore=&lt;file&gt;, every JVM mapping the same file sees the verdicts of the others without locks or a service.
+ * The file is a header (magic, version, capacity) followed by an open addressing table of 32 byte slots, probed linearly:
+ * <pre>long key0     object id bytes 0..7, 0 empty, -1 while written
+ *long key1     object id bytes 8..15
+ *long key2     object id bytes 16..19 and the verdict
+ *long ruleset  fingerprint prefix of the ruleset</pre>
+ * A writer claims a slot by a compare and set of key0 to -1, fills it and publishes it with a release store of key0.
+ * A reader validates key0 after reading the slot like {@link java.util.concurrent.locks.StampedLock#validate(long)}, a slot replaced meanwhile is a miss.
+ * Only clean verdicts are shared, a blob with findings is scanned again by the instance rejecting it to have the lines of its message.
+ * When the probe window is full a slot of an other ruleset is replaced first, else the first slot of the window.
+ */
+public final class SharedScanStore {
+	private static final Logger    LOG     = Logger.getLogger(SharedScanStore.class.getCanonicalName());
+	private static final long      MAGIC   = 0x4742534543535431L;	// GBSECST1
+	private static final int       VERSION = 1;
+	private static final int       HEADER  = 64;
+	private static final int       SLOT    = 32;
+	private static final int       PROBES  = 32;
+	private static final long      EMPTY   = 0;
+	private static final long      BUSY    = -1;
+	private static final int       CLEAN   = 1;
+	private static final VarHandle LONG    = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final MappedByteBuffer map;
+	private final int              mask;
+
+	private SharedScanStore(final MappedByteBuffer map, final int capacity) {
+		this.map  = map;
+		this.mask = capacity - 1;
+	}
+
+	/** @return the store of GitBlitSecCheck.sharedStore with GitBlitSecCheck.sharedStoreEntries slots (default 1M, 32 MB), null if none is configured or it is unusable */
+	static SharedScanStore configured() {
+		final var file = System.getProperty("GitBlitSecCheck.sharedStore");
+		if(null == file || file.isBlank()) return null;
+		try {
+			final var store = open(Path.of(file), Integer.getInteger("GitBlitSecCheck.sharedStoreEntries", 1 << 20));
+			LOG.log(Level.INFO, "Shared scan verdicts in "+file+" with "+(store.mask + 1)+" slots");
+			return store;
+		} catch(final IOException | IllegalStateException e) {
+			LOG.log(Level.WARNING, "Shared store "+file+" => "+e.getMessage()+", verdicts stay local");
+			return null;
+		}
+	}
+
+	/** Maps the file, creating it under a file lock if it is new, an existing file keeps its capacity. */
+	static SharedScanStore open(final Path file, final int entries) throws IOException {
+		try(final var ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE); final var _ = ch.lock()) {
+			final var header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+			if(ch.size() >= HEADER) ch.read(header, 0);
+			var capacity = header.getInt(12);
+			if(header.getLong(0) == 0) {	// new, or its creator died before the header was written
+				capacity = Integer.highestOneBit(Math.clamp(entries, 1024, 1 << 25) - 1) << 1;
+				ch.write(ByteBuffer.allocate(1), HEADER + (long)capacity * SLOT - 1);	// sparse zero slots
+				ch.write(header.clear().putLong(0, MAGIC).putInt(8, VERSION).putInt(12, capacity), 0);
+				ch.force(true);
+			} else if(header.getLong(0) != MAGIC || header.getInt(8) != VERSION) throw new IllegalStateException("not a store of version "+VERSION);
+			if(Integer.bitCount(capacity) != 1 || capacity > 1 << 25 || ch.size() < HEADER + (long)capacity * SLOT) throw new IllegalStateException("corrupt header, capacity "+capacity);
+			return new SharedScanStore(ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)capacity * SLOT), capacity);
+		}
+	}
+
+	/** @return key0, key1 and key2 of the blob */
+	private static long[] key(final AnyObjectId id) {
+		final var raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		final var b  = ByteBuffer.wrap(raw);
+		final var k0 = b.getLong(0);
+		return new long[] { k0 == EMPTY || k0 == BUSY ? 1 : k0, b.getLong(8), (long)b.getInt(16) << 32 | CLEAN };
+	}
+
+	private int slot(final long[] k, final long fingerprint, final int probe) {
+		final var home = (int)((k[1] ^ fingerprint) * 0x9E3779B97F4A7C15L >>> 32);
+		return HEADER + ((home + probe) & mask) * SLOT;
+	}
+
+	private boolean holds(final int at, final long[] k, final long fingerprint) {
+		final var k0 = (long)LONG.getAcquire(map, at);
+		if(k0 != k[0]) return false;
+		final var same = (long)LONG.get(map, at + 8) == k[1] && (long)LONG.get(map, at + 16) == k[2] && (long)LONG.get(map, at + 24) == fingerprint;
+		VarHandle.acquireFence();
+		return same && (long)LONG.get(map, at) == k0;
+	}
+
+	/** @return true if an instance found the blob clean with the ruleset */
+	public boolean clean(final long fingerprint, final AnyObjectId id) {
+		final var k = key(id);
+		for(var i = 0; i < PROBES; i++) {
+			final var at = slot(k, fingerprint, i);
+			if((long)LONG.getAcquire(map, at) == EMPTY) return false;
+			if(holds(at, k, fingerprint)) return true;
+		}
+		return false;
+	}
+
+	public void putClean(final long fingerprint, final AnyObjectId id) {
+		final var k = key(id);
+		var victim = -1;
+		for(var i = 0; i < PROBES; i++) {
+			final var at = slot(k, fingerprint, i);
+			final var k0 = (long)LONG.getAcquire(map, at);
+			if(k0 == EMPTY && claim(at, EMPTY, k, fingerprint)) return;
+			if(holds(at, k, fingerprint)) return;	// also if an other instance just won the empty slot with the same blob
+			if(victim < 0 && k0 != EMPTY && k0 != BUSY && (long)LONG.get(map, at + 24) != fingerprint) victim = at;
+		}
+		final var at = victim >= 0 ? victim : slot(k, fingerprint, 0);
+		final var k0 = (long)LONG.getAcquire(map, at);
+		if(k0 != BUSY) claim(at, k0, k, fingerprint);
+	}
+
+	private boolean claim(final int at, final long expected, final long[] k, final long fingerprint) {
+		if(!LONG.compareAndSet(map, at, expected, BUSY)) return false;
+		LONG.set(map, at + 8 , k[1]);
+		LONG.set(map, at + 16, k[2]);
+		LONG.set(map, at + 24, fingerprint);
+		LONG.setRelease(map, at, k[0]);
+		return true;
+	}
+}
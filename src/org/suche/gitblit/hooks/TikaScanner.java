@@ -1,7 +1,15 @@
 package org.suche.gitblit.hooks;
 
 import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,23 +18,111 @@ import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.suche.gitblit.hooks.Ruleset.FindingSink;
 
+/** Scans the text Tika extracts from office documents and PDFs.
+ * Extraction runs on a small pool of its own with a wall clock timeout per document. The text is never materialized:
+ * it is matched while Tika writes it, in windows that repeat the tail of the previous one, up to a limit of extracted chars.
+ * A document cut at that limit is reported to the caller, its verdict covers only the text before the cut.
+ * Lines and columns of the findings refer to the extracted text.
+ */
 public class TikaScanner {
 	private static final Logger LOG = Logger.getLogger(GitBlitSecCheckReceiveHook.class.getCanonicalName());
 
-	public static String parse(final byte[] content) {
-		final var parser   = (Parser)new AutoDetectParser();
-		final var sw       = new StringWriter();
-		final var handler  = new BodyContentHandler(sw);
-		final var metadata = new Metadata();
-		final var pc       = new ParseContext();
-		final var stream   = new ByteArrayInputStream(content);
-		try {
-			parser.parse(stream, handler, metadata, pc);
-			return sw.toString();
-		} catch(final Throwable t) {
-			LOG.log(Level.WARNING, "parse() => "+t.getMessage(), t);
+	private static final Parser          parser     = new AutoDetectParser();	// thread safe, the detector and parser registry are built once
+	static final         long            writeLimit = Long   .getLong   ("GitBlitSecCheck.tikaWriteLimit"   , 64L << 20);
+	private static final long            timeout    = Long   .getLong   ("GitBlitSecCheck.tikaTimeoutMillis", 60_000);
+	private static final int             window     = Integer.getInteger("GitBlitSecCheck.tikaWindow"       , 1 << 20);
+	private static final int             overlap    = Math.min(window / 2, 64 << 10);
+	private static final ExecutorService workers    = Executors.newFixedThreadPool(Integer.getInteger("GitBlitSecCheck.tikaThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), r -> {
+		final var t = new Thread(r, "Tika extraction");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Ends the extraction early, when the sink stops, at the write limit or after the timeout. */
+	private static final class Stop extends IOException {
+		private static final long serialVersionUID = 1L;
+		Stop(final String message) { super(message, null); }
+	}
+
+	/** Receives the extracted text and matches it window by window. */
+	private static final class ScanWriter extends Writer {
+		private final    WindowScanner scanner;
+		private final    long          deadline;
+		private final    char[]        buf   = new char[window + overlap];
+		private          int           length;
+		private          int           fresh;
+		private          long          total;
+		private volatile boolean       cancelled;
+		boolean                        stopped;
+		boolean                        truncated;
+
+		ScanWriter(final WindowScanner scanner, final long deadline) { this.scanner = scanner; this.deadline = deadline; }
+
+		@Override public void write(final char[] c, int off, int len) throws IOException {
+			if(cancelled)                     throw new Stop("cancelled");
+			if((total += len) > writeLimit) { truncated = true; throw new Stop("write limit of "+writeLimit+" chars reached"); }
+			while(len > 0) {
+				final var n = Math.min(len, buf.length - length);
+				System.arraycopy(c, off, buf, length, n);
+				length += n;
+				fresh  += n;
+				off    += n;
+				len    -= n;
+				if(length == buf.length) scanWindow();
+			}
+		}
+
+		private void scanWindow() throws Stop {
+			stopped = !scanner.scan(new DeadlineSequence(CharBuffer.wrap(buf, 0, length), deadline));
+			if(stopped) throw new Stop("sink stopped");
+			final var carry = Math.min(overlap, length);
+			System.arraycopy(buf, length - carry, buf, 0, carry);
+			length = carry;
+			fresh  = 0;
+		}
+
+		@Override public void flush() { }
+		@Override public void close() { }
+	}
+
+	/** Extracts the document and reports the findings of the applicable rules (null for all) to the sink.
+	 * @return false if the extraction stopped at the write limit, the rest of the document is not scanned
+	 * @throws IOException if Tika can not parse the document
+	 * @throws DeadlineSequence.TimeoutException if extraction and matching exceed the timeout or the deadline */
+	public static boolean scan(final Ruleset ruleset, final String path, final BitSet applicable, final byte[] content, final long deadline, final FindingSink sink) throws IOException, InterruptedException {
+		final var end    = Math.min(deadline, System.nanoTime() + timeout * 1_000_000);
+		final var writer = new ScanWriter(new WindowScanner(ruleset, path, applicable, overlap, sink), end);
+		final var future = workers.submit(() -> {
+			try {
+				parser.parse(new ByteArrayInputStream(content), new BodyContentHandler(writer), new Metadata(), new ParseContext());
+			} catch(final Exception e) {
+				if(writer.stopped || writer.cancelled) return null;
+				if(cause(e, DeadlineSequence.TimeoutException.class) instanceof final DeadlineSequence.TimeoutException t) throw t;
+				if(!(cause(e, Stop.class) instanceof final Stop stop)) throw e;
+				LOG.log(Level.INFO, "parse() => "+stop.getMessage()+", rest of the document is not scanned");
+			}
+			if(writer.fresh > 0) try { writer.scanWindow(); } catch(final Stop _) { }
 			return null;
+		});
+		try {
+			future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+			return !writer.truncated;
+		} catch(final TimeoutException e) {
+			writer.cancelled = true;
+			future.cancel(true);
+			throw new DeadlineSequence.TimeoutException("Tika extraction exceeded "+timeout+" ms");
+		} catch(final ExecutionException e) {
+			if(e.getCause() instanceof final DeadlineSequence.TimeoutException t) throw t;
+			LOG.log(Level.WARNING, "parse() => "+e.getCause().getMessage(), e.getCause());
+			throw new IOException(e.getCause());
 		}
 	}
-}
\ No newline at end of file
+
+	/** @return first throwable of the type in the cause chain, Tika wraps exceptions of the content handler */
+	private static <T extends Throwable> T cause(final Throwable t, final Class<T> type) {
+		for(var c = t; c != null; c = c.getCause() == c ? null : c.getCause()) if(type.isInstance(c)) return type.cast(c);
+		return null;
+	}
+}
@@ -0,0 +1,44 @@
+package org.suche.gitblit.hooks;
+
+import java.util.BitSet;
+
+import org.suche.gitblit.hooks.Ruleset.Finding;
+import org.suche.gitblit.hooks.Ruleset.FindingSink;
+
+/** Runs {@link Ruleset#scan} over content arriving in windows, every window after the first repeats the last {@code overlap} chars of the previous one.
+ * Each finding is reported once, with offsets, line and column in the whole content.
+ */
+final class WindowScanner {
+	private final Ruleset     ruleset;
+	private final String      path;
+	private final BitSet      applicable;
+	private final FindingSink sink;
+	private final int         overlap;
+	private       int         offset;	// position of the current window start in the whole content
+	private       int         line   = 1;
+	private       int         column = 1;
+	private       int         carry;	// chars at the start of the current window already scanned as part of the previous one
+
+	WindowScanner(final Ruleset ruleset, final String path, final BitSet applicable, final int overlap, final FindingSink sink) {
+		this.ruleset    = ruleset;
+		this.path       = path;
+		this.applicable = applicable;
+		this.overlap    = overlap;
+		this.sink       = sink;
+	}
+
+	/** @return false if the sink stopped the scan */
+	boolean scan(final CharSequence window) {
+		final var skip = carry;
+		final var more = ruleset.scan(window, path, applicable, f -> f.end() <= skip || sink.accept(shift(f)));	// matches inside the carry were reported before
+		final var next = Math.min(overlap, window.length());
+		for(int i = 0, n = window.length() - next; i < n; i++) if(window.charAt(i) == '\n') { line++; column = 1; } else column++;
+		offset += window.length() - next;
+		carry   = next;
+		return more;
+	}
+
+	private Finding shift(final Finding f) {
+		return new Finding(f.rule(), f.secret(), offset + f.start(), offset + f.end(), line + f.line() - 1, f.line() == 1 ? column + f.column() - 1 : f.column());
+	}
+}